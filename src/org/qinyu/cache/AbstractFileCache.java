@@ -1,15 +1,26 @@
 package org.qinyu.cache;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
 
+import org.qinyu.utils.ByteBufferInputStream;
+import org.qinyu.utils.CancellationSignal;
+
 import android.content.Context;
 import android.os.Environment;
 import android.util.Log;
@@ -26,21 +37,83 @@ public abstract class AbstractFileCache implements Comparator<File> {
     /** The Constant TAG. */
     protected static final String TAG = LimitSizeFileCache.class.getSimpleName();
 
+    /** The suffix of the file that holds the metadata of an entry. */
+    protected static final String META_SUFFIX = ".meta";
+
+    /** The suffix of a file being written by an {@link Editor}. */
+    protected static final String TEMP_SUFFIX = ".tmp";
+
+    /** The suffix of a partly downloaded entry kept to be resumed. */
+    protected static final String PARTIAL_SUFFIX = ".part";
+
+    /** The suffix of a file that packs many entries, see {@link SegmentFileCache}. */
+    protected static final String SEGMENT_SUFFIX = ".seg";
+
+    /** The time after which a partial entry is dropped at startup. */
+    private static final long PARTIAL_MAX_AGE = 24 * 60 * 60 * 1000;
+
+    /** The number of memory mappings kept open for mapped reads. */
+    private static final int MAX_MAPPINGS = 32;
+
+    /** The number of bytes kept mapped for mapped reads. */
+    private static final long MAX_MAPPED_BYTES = 8 * 1024 * 1024;
+
+    /** The largest entry file that is mapped, larger ones are streamed. */
+    private static final long MAX_MAPPED_FILE = 1024 * 1024;
+
+    /** The number of entries just written that are kept from eviction. */
+    private static final int MAX_PINNED = 4;
+
+    /** The Constant NOMEDIA. */
+    private static final String NOMEDIA = ".nomedia";
+
     /** The m directory. */
     private String mDirectory;
 
     /** The m lock. */
     protected ReentrantLock mLock;
 
-    /** The m buf. */
-    private byte[] mBuf;
-
     /** The m size. */
     protected long mSize;
 
     /** The m count. */
     protected int mCount;
 
+    /** The index of the entries, guarded by the lock. */
+    private final CacheJournal mJournal;
+
+    /** Decides which entry is evicted next, guarded by the lock. */
+    private EvictionPolicy mPolicy = new LruEvictionPolicy();
+
+    /** The m hit count, since the policy was set. */
+    private int mHitCount;
+
+    /** The m miss count, since the policy was set. */
+    private int mMissCount;
+
+    /** The bytes of the entries read, since the policy was set. */
+    private long mHitBytes;
+
+    /** The bytes of the entries written, since the policy was set. */
+    private long mMissBytes;
+
+    /** The mappings of the files read with mapped reads. */
+    final MappedFiles mMappings = new MappedFiles(MAX_MAPPINGS, MAX_MAPPED_BYTES, MAX_MAPPED_FILE);
+
+    /** The m mapped reads. */
+    private volatile boolean mMappedReads;
+
+    /**
+     * The sizes of the entries written last and not looked up since, oldest
+     * first, guarded by the lock. They are not evicted, so that whoever wrote
+     * one can read it back; a policy that ranks by size could otherwise evict
+     * a large entry in the very commit that wrote it.
+     */
+    private final LinkedHashMap<String, Long> mPinned = new LinkedHashMap<String, Long>();
+
+    /** Whether the index was rebuilt or completed from the directory. */
+    private boolean mRecovered;
+
     /**
      * Instantiates a new abstract file cache.
      * 
@@ -63,24 +136,81 @@ public abstract class AbstractFileCache implements Comparator<File> {
             setDirectory(appContext.getCacheDir().getAbsolutePath() + "/" + cacheName);
         }
 
+        mJournal = new CacheJournal(new File(getDirectory()));
         if (assureDirectoryExist(getDirectory())) {
-            File[] cachedFiles = new File(getDirectory()).listFiles();
-            if (cachedFiles == null) {
-                return;
+            // on every start, a crash leaves them whatever the journal says
+            deleteLeftovers();
+            if (!mJournal.read()) {
+                rebuild();
+                mRecovered = true;
+            } else if (mJournal.isTruncated()) {
+                reconcile();
+                mRecovered = true;
             }
+            mSize = mJournal.size();
+            mCount = mJournal.count();
+            feed(mPolicy);
+        }
+
+    }
 
-            for (int i = 0; i < cachedFiles.length; i++) {
-                mSize += cachedFiles[i].length();
+    /**
+     * Rebuild the index from the cache directory, when there is no journal
+     * yet or it can not be read.
+     */
+    private void rebuild() {
+        List<File> entries = sortFiles();
+        if (entries == null) {
+            return;
+        }
+        mJournal.rebuild(entries);
+    }
+
+    /**
+     * Adopt the entry files the index does not know, after the replay of the
+     * journal stopped early. An entry file is only renamed into place once
+     * complete, so such a file was written in full and only its journal line
+     * was lost.
+     */
+    private void reconcile() {
+        List<File> entries = sortFiles();
+        if (entries == null) {
+            return;
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            File f = entries.get(i);
+            if (!mJournal.contains(f.getName())) {
+                Log.w(TAG, "Adopting " + f);
+                mJournal.put(f.getName(), f.length());
             }
-            mCount += cachedFiles.length;
         }
+    }
 
+    /**
+     * Delete the files left by edits that never finished and old partial
+     * entries.
+     */
+    private void deleteLeftovers() {
+        File[] cachedFiles = new File(getDirectory()).listFiles();
+        if (cachedFiles == null) {
+            return;
+        }
+        for (int i = 0; i < cachedFiles.length; i++) {
+            String name = cachedFiles[i].getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                cachedFiles[i].delete();
+            } else if (name.endsWith(PARTIAL_SUFFIX)
+                    && System.currentTimeMillis() - cachedFiles[i].lastModified() > PARTIAL_MAX_AGE) {
+                cachedFiles[i].delete();
+                getMetadataFile(name).delete();
+            }
+        }
     }
 
     private static boolean assureDirectoryExist(String dir) {
         File outFile = new File(dir);
         if (outFile.exists() || outFile.mkdirs()) {
-            File nomedia = new File(dir, ".nomedia");
+            File nomedia = new File(dir, NOMEDIA);
             if (!nomedia.exists()) {
                 try {
                     nomedia.createNewFile();
@@ -93,6 +223,178 @@ public abstract class AbstractFileCache implements Comparator<File> {
         return false;
     }
 
+    /**
+     * Checks if a file in the cache directory holds the bytes of an entry, as
+     * opposed to metadata.
+     * 
+     * @param f
+     *            the file
+     * @return true, if the file is an entry
+     */
+    protected static boolean isEntry(File f) {
+        String name = f.getName();
+        return !name.equals(NOMEDIA) && !name.equals(CacheJournal.JOURNAL_FILE) && !name.endsWith(META_SUFFIX)
+                && !name.endsWith(TEMP_SUFFIX) && !name.endsWith(PARTIAL_SUFFIX) && !name.endsWith(SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Record an entry that was written as the most recently used.
+     * 
+     * @param fileName
+     *            the file name of the entry
+     * @param length
+     *            the size of the entry
+     */
+    protected final void record(String fileName, long length) {
+        Long previous = mJournal.put(fileName, length);
+        mPolicy.onPut(fileName, length);
+        if (previous != null) {
+            mSize -= previous;
+            mCount--;
+        }
+        mSize += length;
+        mCount++;
+    }
+
+    /**
+     * Checks if the index was rebuilt from the cache directory at startup, or
+     * completed from it after the journal was cut off, rather than read from a
+     * complete journal. Entries that are not stored as files of their own may
+     * then be missing from it, for the subclass to {@link #record} again.
+     * 
+     * @return true, if recovered
+     */
+    protected final boolean isRecovered() {
+        return mRecovered;
+    }
+
+    /**
+     * Checks if an entry is in the index, without making it more recent.
+     * 
+     * @param fileName
+     *            the file name of the entry
+     * @return true, if indexed
+     */
+    protected final boolean isIndexed(String fileName) {
+        return mJournal.contains(fileName);
+    }
+
+    /**
+     * Delete an entry and its metadata and drop it from the index.
+     */
+    private void remove(String fileName) {
+        mPinned.remove(fileName);
+        delete(fileName);
+        mPolicy.onRemove(fileName);
+        Long size = mJournal.remove(fileName);
+        if (size != null) {
+            mSize -= size;
+            mCount--;
+        }
+    }
+
+    /**
+     * Delete the stored bytes and metadata of an entry. Called with the lock
+     * held.
+     * 
+     * @param fileName
+     *            the file name of the entry
+     */
+    protected void delete(String fileName) {
+        File f = new File(getDirectory(), fileName);
+        f.delete();
+        // after the file is gone, so that no reader maps it again
+        mMappings.remove(f);
+        getMetadataFile(fileName).delete();
+    }
+
+    /**
+     * Store the bytes written by an editor as the entry and record it. Called
+     * with the lock held.
+     * 
+     * @param fileName
+     *            the file name of the entry
+     * @param temp
+     *            the temporary file the bytes were written to, it is gone
+     *            afterwards
+     * @param metadata
+     *            the metadata, may be null
+     * @return the location of the entry, or null if it could not be stored
+     */
+    protected String install(String fileName, File temp, CacheMetadata metadata) {
+        File f = new File(getDirectory(), fileName);
+        boolean renamed = temp.renameTo(f);
+        mMappings.remove(f);
+        if (!renamed) {
+            temp.delete();
+            remove(fileName);
+            return null;
+        }
+        record(fileName, f.length());
+        writeMetadata(fileName, metadata);
+        return f.getAbsolutePath();
+    }
+
+    /**
+     * Checks if the bytes of an indexed entry are still stored. Called with
+     * the lock held.
+     * 
+     * @param fileName
+     *            the file name of the entry
+     * @return true, if stored
+     */
+    protected boolean isStored(String fileName) {
+        return new File(getDirectory(), fileName).isFile();
+    }
+
+    /**
+     * Gets the location of a stored entry. Called with the lock held.
+     * 
+     * @param fileName
+     *            the file name of the entry
+     * @return the location, the path of the file by default
+     */
+    protected String locate(String fileName) {
+        return new File(getDirectory(), fileName).getAbsolutePath();
+    }
+
+    /**
+     * Read the metadata of an entry. Called with the lock held.
+     * 
+     * @param fileName
+     *            the file name of the entry
+     * @return the metadata, or null if there is none
+     */
+    protected CacheMetadata readMetadata(String fileName) {
+        return CacheMetadata.read(getMetadataFile(fileName));
+    }
+
+    /**
+     * Write the metadata of an entry. Called with the lock held.
+     * 
+     * @param fileName
+     *            the file name of the entry
+     * @param metadata
+     *            the metadata, null to drop it
+     * @return true, if written
+     */
+    protected boolean writeMetadata(String fileName, CacheMetadata metadata) {
+        File metadataFile = getMetadataFile(fileName);
+        if (metadata == null || !metadata.write(metadataFile)) {
+            metadataFile.delete();
+            return false;
+        }
+        return true;
+    }
+
+    private static String getFileName(String key) {
+        return Integer.toHexString(key.hashCode());
+    }
+
+    private File getMetadataFile(String fileName) {
+        return new File(getDirectory(), fileName + META_SUFFIX);
+    }
+
     /**
      * Put.
      * 
@@ -103,30 +405,438 @@ public abstract class AbstractFileCache implements Comparator<File> {
      * @return the string
      */
     public String put(String key, InputStream value) {
+        return put(key, value, null);
+    }
+
+    /**
+     * Put, giving up between two chunks once the signal is cancelled. A
+     * cancelled write leaves no file behind.
+     * 
+     * @param key
+     *            the key
+     * @param value
+     *            the value
+     * @param signal
+     *            the cancellation signal, may be null
+     * @return the string, or null if the write failed or was cancelled
+     */
+    public String put(String key, InputStream value, CancellationSignal signal) {
+        return put(key, value, signal, null);
+    }
+
+    /**
+     * Put, together with the metadata of the response the value came from.
+     * 
+     * @param key
+     *            the key
+     * @param value
+     *            the value
+     * @param signal
+     *            the cancellation signal, may be null
+     * @param metadata
+     *            the metadata, may be null
+     * @return the string, or null if the write failed or was cancelled
+     */
+    public String put(String key, InputStream value, CancellationSignal signal, CacheMetadata metadata) {
+        Editor editor = null;
+        try {
+            // a put always writes the whole value, a partial entry is left
+            // for the download that can resume it
+            editor = edit(key, false);
+            OutputStream out = editor.getOutputStream();
+            byte[] buf = new byte[4096];
+            int count;
+            do {
+                if (signal != null && signal.isCanceled()) {
+                    throw new InterruptedIOException("Canceled");
+                }
+                count = value.read(buf);
+                if (count > 0) {
+                    out.write(buf, 0, count);
+                }
+            } while (count > 0);
+            Editor committing = editor;
+            editor = null;
+            return committing.commit(metadata);
+        } catch (IOException e) {
+            Log.w(TAG, "Can not save to cache!", e);
+            return null;
+        } finally {
+            if (editor != null) {
+                editor.abort();
+            }
+        }
+    }
+
+    /**
+     * Start writing an entry through a stream, for instance while the bytes
+     * are also decoded. The entry is written to a temporary file of its own
+     * without holding the lock, and only replaces the previous entry on
+     * {@link Editor#commit(CacheMetadata)}, with a rename, so readers never
+     * see a half-written entry.
+     * If a partial entry was kept for the key, the editor takes it over and
+     * appends to it, see {@link Editor#getResumeOffset()}.
+     * 
+     * @param key
+     *            the key
+     * @return the editor
+     * @throws IOException
+     *             if the temporary file can not be created
+     */
+    public Editor edit(String key) throws IOException {
+        return edit(key, true);
+    }
+
+    /**
+     * Start writing an entry through a stream.
+     * 
+     * @param key
+     *            the key
+     * @param resume
+     *            whether to take over a partial entry, if false it is left
+     *            alone
+     * @return the editor
+     * @throws IOException
+     *             if the temporary file can not be created
+     * @see #edit(String)
+     */
+    public Editor edit(String key, boolean resume) throws IOException {
+        if (!assureDirectoryExist(getDirectory())) {
+            throw new IOException("Can not create " + getDirectory());
+        }
+        String fileName = getFileName(key);
+        File temp = File.createTempFile(fileName + "-", TEMP_SUFFIX, new File(getDirectory()));
+        CacheMetadata partial = null;
+        if (!resume) {
+            return new Editor(fileName, temp, null);
+        }
         mLock.lock();
         try {
-            free();
-            return saveCacheFile(Integer.toHexString(key.hashCode()), value);
+            File part = new File(getDirectory(), fileName + PARTIAL_SUFFIX);
+            File partMetadata = getMetadataFile(part.getName());
+            // the rename makes sure only one editor resumes a partial entry
+            if (part.exists() && part.renameTo(temp)) {
+                partial = CacheMetadata.read(partMetadata);
+            }
+            partMetadata.delete();
+        } finally {
+            mLock.unlock();
+        }
+        return new Editor(fileName, temp, partial);
+    }
+
+    /**
+     * Gets the metadata kept with the partial entry of a key, without taking
+     * it over, so that a download can ask for the rest before it opens an
+     * {@link Editor}.
+     * 
+     * @param key
+     *            the key
+     * @return the metadata, or null if there is no partial entry
+     */
+    public CacheMetadata getPartialMetadata(String key) {
+        mLock.lock();
+        try {
+            File part = new File(getDirectory(), getFileName(key) + PARTIAL_SUFFIX);
+            return part.exists() ? CacheMetadata.read(getMetadataFile(part.getName())) : null;
         } finally {
             mLock.unlock();
         }
     }
 
     /**
-     * Gets the.
+     * Gets the length of the partial entry of a key.
      * 
      * @param key
      *            the key
-     * @return the file
+     * @return the length, 0 if there is no partial entry
+     */
+    public long getPartialLength(String key) {
+        mLock.lock();
+        try {
+            return new File(getDirectory(), getFileName(key) + PARTIAL_SUFFIX).length();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Writes one entry to a temporary file. Either {@link #commit} or
+     * {@link #abort} must be called.
+     */
+    public final class Editor {
+
+        /** The file name of the entry. */
+        private final String mFileName;
+
+        /** The temporary file. */
+        private final File mTemp;
+
+        /** The m out. */
+        private OutputStream mOut;
+
+        /** The metadata of the resumed partial entry, or null. */
+        private CacheMetadata mResumeMetadata;
+
+        /** The length of the resumed partial entry. */
+        private long mResumeOffset;
+
+        private Editor(String fileName, File temp, CacheMetadata partial) throws IOException {
+            mFileName = fileName;
+            mTemp = temp;
+            try {
+                mOut = new FileOutputStream(temp, partial != null);
+            } catch (IOException e) {
+                temp.delete();
+                throw e;
+            }
+            mResumeMetadata = partial;
+            mResumeOffset = partial != null ? temp.length() : 0;
+        }
+
+        /**
+         * Gets the number of bytes already there from a partial entry. Bytes
+         * written to the editor are appended to them.
+         * 
+         * @return the resume offset, 0 if nothing was resumed
+         */
+        public long getResumeOffset() {
+            return mResumeOffset;
+        }
+
+        /**
+         * Gets the metadata kept with the resumed partial entry.
+         * 
+         * @return the metadata, or null if nothing was resumed
+         */
+        public CacheMetadata getResumeMetadata() {
+            return mResumeMetadata;
+        }
+
+        /**
+         * Drop the resumed bytes and start from the beginning.
+         * 
+         * @throws IOException
+         *             if the file can not be truncated
+         */
+        public void restart() throws IOException {
+            if (mResumeOffset == 0 && mResumeMetadata == null) {
+                return;
+            }
+            mOut.close();
+            mOut = new FileOutputStream(mTemp, false);
+            mResumeOffset = 0;
+            mResumeMetadata = null;
+        }
+
+        /**
+         * Keep what was written as a partial entry, so that a later editor can
+         * resume it. Like {@link #abort()} this ends the edit.
+         * 
+         * @param metadata
+         *            the metadata of the response, with the validator that
+         *            tells whether the rest can be requested
+         */
+        public void keepPartial(CacheMetadata metadata) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                mTemp.delete();
+                return;
+            }
+            mLock.lock();
+            try {
+                File part = new File(getDirectory(), mFileName + PARTIAL_SUFFIX);
+                if (!mTemp.renameTo(part) || !metadata.write(getMetadataFile(part.getName()))) {
+                    mTemp.delete();
+                    part.delete();
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /**
+         * Gets the stream to write the entry to.
+         * 
+         * @return the output stream
+         */
+        public OutputStream getOutputStream() {
+            return mOut;
+        }
+
+        /**
+         * Replace the entry with what was written.
+         * 
+         * @param metadata
+         *            the metadata, may be null
+         * @return the location of the entry, see {@link #getLocation(String)},
+         *         or null if it could not be saved
+         */
+        public String commit(CacheMetadata metadata) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Can not save to cache!", e);
+                mTemp.delete();
+                return null;
+            }
+            long length = mTemp.length();
+            mLock.lock();
+            try {
+                String location = install(mFileName, mTemp, metadata);
+                if (location == null) {
+                    return null;
+                }
+                mMissBytes += length;
+                pin(mFileName, length);
+                free();
+                return mJournal.contains(mFileName) ? location : null;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /**
+         * Drop what was written and keep the previous entry, if any.
+         */
+        public void abort() {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+            }
+            mTemp.delete();
+        }
+    }
+
+    /**
+     * Gets the metadata of an entry.
+     * 
+     * @param key
+     *            the key
+     * @return the metadata, or null if the entry has none
+     */
+    public CacheMetadata getMetadata(String key) {
+        mLock.lock();
+        try {
+            String fileName = getFileName(key);
+            return mJournal.contains(fileName) ? readMetadata(fileName) : null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Replace the metadata of an entry, typically after the server confirmed
+     * the entry is still valid. The entry counts as just used.
+     * 
+     * @param key
+     *            the key
+     * @param metadata
+     *            the metadata
+     * @return true, if the entry exists and the metadata was written
+     */
+    public boolean putMetadata(String key, CacheMetadata metadata) {
+        mLock.lock();
+        try {
+            String fileName = getFileName(key);
+            if (mJournal.touch(fileName) == null) {
+                return false;
+            }
+            mPolicy.onAccess(fileName);
+            return writeMetadata(fileName, metadata);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the file of an entry. Entries that are not stored as a file of
+     * their own, see {@link SegmentFileCache}, are read with
+     * {@link #getLocation(String)} and {@link #open(String)} instead.
+     * 
+     * @param key
+     *            the key
+     * @return the file, or null if there is no entry or it is not a file
      */
     public File get(String key) {
+        String location = getLocation(key);
+        if (location == null) {
+            return null;
+        }
+        File f = new File(location);
+        return f.isFile() ? f : null;
+    }
+
+    /**
+     * Checks if there is an entry for a key, from the index alone: the entry
+     * does not count as used and its bytes are not checked, so this is cheap
+     * enough to call on any thread.
+     * 
+     * @param key
+     *            the key
+     * @return true, if indexed
+     */
+    public boolean contains(String key) {
         mLock.lock();
         try {
-            File f = new File(getDirectory(), Integer.toHexString(key.hashCode()));
-            if (f.exists() && f.isFile()) {
-                f.setLastModified(System.currentTimeMillis());
-                return f;
+            return mJournal.contains(getFileName(key));
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the location of an entry: the path of its file, or an uri that
+     * {@link #open(String)} understands. The entry counts as just used, and
+     * the lookup as a hit or a miss.
+     * 
+     * @param key
+     *            the key
+     * @return the location, or null if there is no entry
+     */
+    public String getLocation(String key) {
+        return lookup(key, true);
+    }
+
+    /**
+     * Gets the location of an entry like {@link #getLocation(String)}, but
+     * without counting a hit or a miss, for a caller that looks up again an
+     * entry whose lookup was already counted.
+     * 
+     * @param key
+     *            the key
+     * @return the location, or null if there is no entry
+     */
+    public String peekLocation(String key) {
+        return lookup(key, false);
+    }
+
+    private String lookup(String key, boolean count) {
+        mLock.lock();
+        try {
+            String fileName = getFileName(key);
+            if (!mJournal.contains(fileName)) {
+                if (count) {
+                    mMissCount++;
+                }
+                return null;
+            }
+            if (isStored(fileName)) {
+                mPinned.remove(fileName);
+                long length = mJournal.touch(fileName);
+                if (count) {
+                    mHitCount++;
+                    mHitBytes += length;
+                }
+                mPolicy.onAccess(fileName);
+                return locate(fileName);
             } else {
+                // deleted behind the cache's back
+                if (count) {
+                    mMissCount++;
+                }
+                remove(fileName);
                 return null;
             }
         } finally {
@@ -135,7 +845,121 @@ public abstract class AbstractFileCache implements Comparator<File> {
     }
 
     /**
-     * Sort files.
+     * Open an entry for reading.
+     * 
+     * @param location
+     *            the location, as returned by {@link #getLocation(String)} or
+     *            {@link Editor#commit(CacheMetadata)}
+     * @return the input stream
+     * @throws IOException
+     *             if the entry is gone
+     */
+    public InputStream open(String location) throws IOException {
+        ByteBuffer mapped = map(location);
+        return mapped != null ? new ByteBufferInputStream(mapped) : new FileInputStream(location);
+    }
+
+    /**
+     * Gets the bytes of an entry as a buffer: a view of its memory mapping
+     * with mapped reads, or else a copy read from storage.
+     * 
+     * @param location
+     *            the location, as returned by {@link #getLocation(String)} or
+     *            {@link Editor#commit(CacheMetadata)}
+     * @return the buffer, from its position to its limit
+     * @throws IOException
+     *             if the entry is gone
+     */
+    public ByteBuffer getBuffer(String location) throws IOException {
+        ByteBuffer mapped = map(location);
+        if (mapped != null) {
+            return mapped;
+        }
+        RandomAccessFile raf = new RandomAccessFile(location, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return ByteBuffer.wrap(bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Gets a view of the mapping of an entry file, if mapped reads are on and
+     * the file is small enough to be mapped.
+     * 
+     * @return the view, or null if the file is to be read instead
+     */
+    private ByteBuffer map(String location) {
+        if (!mMappedReads) {
+            return null;
+        }
+        try {
+            return mMappings.map(new File(location), -1, -1);
+        } catch (IOException e) {
+            Log.w(TAG, "Can not map " + location, e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the file of an entry that is read from storage rather than through
+     * a mapping, because mapped reads are off or the file is too large to be
+     * mapped. A decoder that reads the entry more than once does better with
+     * the file than with the stream of {@link #open(String)}.
+     * 
+     * @param location
+     *            the location, as returned by {@link #getLocation(String)} or
+     *            {@link Editor#commit(CacheMetadata)}
+     * @return the file, or null if the entry is mapped or not a file of its
+     *         own
+     */
+    public File getUnmappedFile(String location) {
+        File file = new File(location);
+        return !mMappedReads || file.length() > MAX_MAPPED_FILE ? file : null;
+    }
+
+    /**
+     * Checks if a location is one of an entry of this cache.
+     * 
+     * @param location
+     *            the location, a path or uri
+     * @return true, if it can be read with {@link #open(String)}
+     */
+    public boolean owns(String location) {
+        return location.startsWith(getDirectory() + "/");
+    }
+
+    /**
+     * Read entries through memory mappings instead of reading the files. Only
+     * files up to {@link #MAX_MAPPED_FILE} are mapped, and a bounded number of
+     * them, up to a bounded number of bytes, stay mapped; the least recently
+     * used are dropped first. Reading a mapped entry again takes no system
+     * calls, and the decoder can read it twice, for the bounds and for the
+     * pixels, without buffering it.
+     * 
+     * @param mappedReads
+     *            true to map
+     */
+    public void setMappedReads(boolean mappedReads) {
+        mMappedReads = mappedReads;
+        if (!mappedReads) {
+            mMappings.clear();
+        }
+    }
+
+    /**
+     * Checks if entries are read through memory mappings.
+     * 
+     * @return true, if mapped
+     */
+    public boolean isMappedReads() {
+        return mMappedReads;
+    }
+
+    /**
+     * Sort the entry files by last modification, oldest first.
      * 
      * @return the list
      */
@@ -144,82 +968,199 @@ public abstract class AbstractFileCache implements Comparator<File> {
         if (cachedFiles == null) {
             return null;
         }
-        List<File> asList = Arrays.asList(cachedFiles);
+        List<File> asList = new ArrayList<File>(cachedFiles.length);
+        for (int i = 0; i < cachedFiles.length; i++) {
+            if (isEntry(cachedFiles[i])) {
+                asList.add(cachedFiles[i]);
+            }
+        }
         Collections.sort(asList, this);
         return asList;
     }
 
     /**
-     * Save cache file.
+     * Keep an entry just written from eviction until it is looked up, or
+     * until more entries were written after it. Called with the lock held.
      * 
      * @param fileName
-     *            the file path
-     * @param in
-     *            the in
-     * @return the string
+     *            the file name of the entry
+     * @param length
+     *            the size of the entry
      */
-    private String saveCacheFile(String fileName, InputStream in) {
+    private void pin(String fileName, long length) {
+        mPinned.remove(fileName);
+        mPinned.put(fileName, length);
+        if (mPinned.size() > MAX_PINNED) {
+            Iterator<String> oldest = mPinned.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Evict entries while over the limit. Pinned entries are taken out of the
+     * policy for the pass and put back after it, as just written.
+     */
+    protected void free() {
         mLock.lock();
         try {
-            if (assureDirectoryExist(getDirectory())) {
-                File f = new File(getDirectory(), fileName);
-                try {
-                    f.createNewFile();
-                    FileOutputStream out = new FileOutputStream(f);
-                    int count = 0;
-                    byte[] buf = getBuf();
-                    do {
-                        count = in.read(buf);
-                        if (count > 0) {
-                            out.write(buf, 0, count);
-                        }
-                    } while (count > 0);
-                    out.close();
-                    mSize += f.length();
-                    mCount++;
-                    return f.getAbsolutePath();
-                } catch (IOException e) {
-                    Log.w(TAG, "Can not save to cache!", e);
+            List<String> skipped = null;
+            String victim;
+            while (needFree() && (victim = mPolicy.victim()) != null) {
+                if (mPinned.containsKey(victim)) {
+                    mPolicy.onRemove(victim);
+                    if (skipped == null) {
+                        skipped = new ArrayList<String>();
+                    }
+                    skipped.add(victim);
+                } else {
+                    remove(victim);
                 }
-                f.delete();
             }
-            return null;
+            for (int i = 0; skipped != null && i < skipped.size(); i++) {
+                String name = skipped.get(i);
+                mPolicy.onPut(name, mPinned.get(name));
+            }
         } finally {
             mLock.unlock();
         }
     }
 
-    private byte[] getBuf() {
+    /**
+     * Sets the policy that decides which entry is evicted next, by default
+     * {@link LruEvictionPolicy}. The policy learns the entries in least
+     * recently used order, and the hit counters start again, so that they
+     * compare policies.
+     * 
+     * @param policy
+     *            the policy
+     */
+    public void setEvictionPolicy(EvictionPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy == null");
+        }
         mLock.lock();
         try {
-            if (mBuf == null) {
-                mBuf = new byte[4096];
-            }
-            return mBuf;
+            policy.clear();
+            feed(policy);
+            mPolicy = policy;
+            mHitCount = 0;
+            mMissCount = 0;
+            mHitBytes = 0;
+            mMissBytes = 0;
+            free();
         } finally {
             mLock.unlock();
         }
     }
 
     /**
-     * Free.
+     * Gets the eviction policy.
+     * 
+     * @return the policy
      */
-    protected void free() {
+    public EvictionPolicy getEvictionPolicy() {
         mLock.lock();
         try {
-            if (needFree()) {
-                List<File> asList = sortFiles();
-                if (asList != null) {
-                    for (int i = 0; i < asList.size() && needFree(); i++) {
-                        File f = asList.get(i);
-                        if (f.length() > 0) {
-                            f.delete();
-                            mSize -= f.length();
-                            mCount--;
-                        }
-                    }
-                }
-            }
+            return mPolicy;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void feed(EvictionPolicy policy) {
+        for (Map.Entry<String, Long> entry : mJournal.entries().entrySet()) {
+            policy.onPut(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Gets the number of lookups that found an entry, since the policy was
+     * set.
+     * 
+     * @return the hit count
+     */
+    public int hitCount() {
+        mLock.lock();
+        try {
+            return mHitCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of lookups that found no entry, since the policy was
+     * set.
+     * 
+     * @return the miss count
+     */
+    public int missCount() {
+        mLock.lock();
+        try {
+            return mMissCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the share of lookups that found an entry, since the policy was
+     * set.
+     * 
+     * @return the hit ratio, 0 if there were no lookups
+     */
+    public double hitRatio() {
+        mLock.lock();
+        try {
+            int lookups = mHitCount + mMissCount;
+            return lookups > 0 ? (double) mHitCount / lookups : 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the share of bytes served from the cache, out of the bytes served
+     * and the bytes written after a miss, since the policy was set. Unlike the
+     * hit ratio it tells how much transfer the cache saves.
+     * 
+     * @return the byte hit ratio, 0 if nothing was read or written
+     */
+    public double byteHitRatio() {
+        mLock.lock();
+        try {
+            long bytes = mHitBytes + mMissBytes;
+            return bytes > 0 ? (double) mHitBytes / bytes : 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Write the recency of the entries read since the last write to storage.
+     * Reads are recorded in memory and written in batches; call this when the
+     * app goes to the background so that the order survives the process.
+     */
+    public void flush() {
+        mLock.lock();
+        try {
+            mJournal.flush();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Write what is pending and release the open files, such as the journal
+     * and the memory mappings. The cache can still be used afterwards, the
+     * files are opened again when needed.
+     */
+    public void close() {
+        mLock.lock();
+        try {
+            mJournal.close();
+            mMappings.clear();
         } finally {
             mLock.unlock();
         }
@@ -237,6 +1178,10 @@ public abstract class AbstractFileCache implements Comparator<File> {
                     }
                 }
             }
+            mJournal.clear();
+            mPolicy.clear();
+            mPinned.clear();
+            mMappings.clear();
             mSize = 0;
             mCount = 0;
         } finally {
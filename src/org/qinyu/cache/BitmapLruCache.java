@@ -0,0 +1,413 @@
+package org.qinyu.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.WeakHashMap;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+
+/**
+ * A memory cache of bitmaps whose budget is measured in bytes.
+ *
+ * Each entry is weighed by its real pixel size ({@link Bitmap#getRowBytes()}
+ * &times; {@link Bitmap#getHeight()}), so a full-screen photo costs what it
+ * actually occupies on the heap instead of the same as a tiny avatar.
+ *
+ * When a {@link BitmapPool} is set, evicted bitmaps are handed to it once
+ * nothing draws them any more, so that later decodes can reuse their memory.
+ * Whoever draws a cached bitmap holds a reference to it, taken with
+ * {@link #acquire(Variant)} or {@link #acquire(Bitmap)} and given back with
+ * {@link #release(Bitmap)}; an evicted bitmap that is still held is pooled on
+ * its last release. A bitmap that escapes to code that does not release it is
+ * marked with {@link #neverPool(Bitmap)}. The references are held weakly, a
+ * holder that is collected without releasing only keeps its bitmap out of the
+ * pool.
+ *
+ * Bitmaps put as a {@link Variant} are indexed by their group, so that a
+ * request can be served from a larger variant of the same image by
+ * {@link #getCovering(Variant)}.
+ */
+public class BitmapLruCache extends LruCache<String, Bitmap> {
+
+    /**
+     * One size or transform of an image in the cache.
+     */
+    public interface Variant {
+
+        /**
+         * Gets the key of this variant.
+         *
+         * @return the key
+         */
+        String getMemCacheKey();
+
+        /**
+         * Gets the key shared by all variants of the same image.
+         *
+         * @return the group key
+         */
+        String getMemCacheGroup();
+
+        /**
+         * Checks if a bitmap of this variant can be downscaled to the other
+         * variant.
+         *
+         * @param other
+         *            the other variant of the same group
+         * @return true, if this variant is at least as large as the other
+         */
+        boolean canDownscaleTo(Variant other);
+    }
+
+    /** The variants by group, then by key. */
+    private final Map<String, Map<String, Variant>> mVariants = new HashMap<String, Map<String, Variant>>();
+
+    /** The group of each variant key. */
+    private final Map<String, String> mVariantGroups = new HashMap<String, String>();
+
+    /** The part of the per-application heap given to the default cache. */
+    private static final int DEFAULT_MEMORY_CLASS_DIVIDER = 8;
+
+    /**
+     * The references to the bitmaps handed out, shared with the cache that
+     * replaces this one in {@link #copyTo(BitmapLruCache)}. Its lock makes a
+     * lookup and its acquire one step, and so the check of an evicted bitmap,
+     * so a bitmap is never pooled between the two.
+     */
+    private volatile References mReferences = new References();
+
+    /** Set once the entries were copied to another cache. */
+    private volatile boolean mRetired;
+
+    /**
+     * The Class References.
+     */
+    private static class References {
+
+        /** The pool receiving released evicted bitmaps. */
+        BitmapPool pool;
+
+        /** The number of references to each bitmap handed out. */
+        final WeakHashMap<Bitmap, Integer> counts = new WeakHashMap<Bitmap, Integer>();
+
+        /** The evicted bitmaps still held, pooled on their last release. */
+        final WeakHashMap<Bitmap, Boolean> evicted = new WeakHashMap<Bitmap, Boolean>();
+
+        /** The bitmaps that are never pooled. */
+        final WeakHashMap<Bitmap, Boolean> neverPooled = new WeakHashMap<Bitmap, Boolean>();
+
+        /**
+         * Pool a bitmap nothing holds. Called with the lock held.
+         */
+        void offer(Bitmap bitmap) {
+            if (pool != null && !neverPooled.containsKey(bitmap)) {
+                pool.put(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Instantiates a new bitmap cache.
+     *
+     * @param maxBytes
+     *            the maximum size of the cache in bytes
+     */
+    public BitmapLruCache(int maxBytes) {
+        super(maxBytes);
+    }
+
+    /**
+     * Sets the pool receiving evicted bitmaps once they are released.
+     *
+     * @param pool
+     *            the pool, or null to let evicted bitmaps be collected
+     */
+    public void setBitmapPool(BitmapPool pool) {
+        References references = mReferences;
+        synchronized (references) {
+            references.pool = pool;
+        }
+    }
+
+    /**
+     * Gets the bitmap of exactly this variant, and a reference to it.
+     *
+     * @param variant
+     *            the variant
+     * @return the bitmap, to be released; or null if not cached
+     */
+    public Bitmap acquire(Variant variant) {
+        synchronized (mReferences) {
+            Bitmap bitmap = get(variant.getMemCacheKey());
+            if (bitmap != null) {
+                acquire(bitmap);
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * Gets the smallest cached bitmap that can be downscaled to a variant, see
+     * {@link #getCovering(Variant)}, and a reference to it.
+     *
+     * @param variant
+     *            the requested variant
+     * @return the bitmap, to be released; or null if no larger variant is
+     *         cached
+     */
+    public Bitmap acquireCovering(Variant variant) {
+        List<Variant> candidates = getCandidates(variant);
+        synchronized (mReferences) {
+            Bitmap best = getSmallest(candidates);
+            if (best != null) {
+                acquire(best);
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Take another reference to a bitmap that is already held, or that is
+     * about to be put.
+     *
+     * @param bitmap
+     *            the bitmap
+     */
+    public void acquire(Bitmap bitmap) {
+        References references = mReferences;
+        synchronized (references) {
+            Integer count = references.counts.get(bitmap);
+            references.counts.put(bitmap, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * Give back a reference. An evicted bitmap is pooled on its last release.
+     *
+     * @param bitmap
+     *            the bitmap
+     */
+    public void release(Bitmap bitmap) {
+        References references = mReferences;
+        synchronized (references) {
+            Integer count = references.counts.get(bitmap);
+            if (count == null) {
+                return;
+            } else if (count > 1) {
+                references.counts.put(bitmap, count - 1);
+                return;
+            }
+            references.counts.remove(bitmap);
+            if (references.evicted.remove(bitmap) != null) {
+                references.offer(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Keep a bitmap out of the pool for good, because code that does not
+     * release it holds it.
+     *
+     * @param bitmap
+     *            the bitmap
+     */
+    public void neverPool(Bitmap bitmap) {
+        References references = mReferences;
+        synchronized (references) {
+            references.neverPooled.put(bitmap, Boolean.TRUE);
+            references.evicted.remove(bitmap);
+        }
+    }
+
+    /**
+     * Put a bitmap of a variant. The variant is indexed before the bitmap is
+     * put, so that an eviction during the put finds it to remove.
+     *
+     * @param variant
+     *            the variant
+     * @param bitmap
+     *            the bitmap
+     * @return the previous bitmap of the variant
+     */
+    public Bitmap put(Variant variant, Bitmap bitmap) {
+        synchronized (mVariants) {
+            Map<String, Variant> group = mVariants.get(variant.getMemCacheGroup());
+            if (group == null) {
+                group = new HashMap<String, Variant>();
+                mVariants.put(variant.getMemCacheGroup(), group);
+            }
+            group.put(variant.getMemCacheKey(), variant);
+            mVariantGroups.put(variant.getMemCacheKey(), variant.getMemCacheGroup());
+            return put(variant.getMemCacheKey(), bitmap);
+        }
+    }
+
+    /**
+     * Gets the bitmap of exactly this variant.
+     *
+     * @param variant
+     *            the variant
+     * @return the bitmap
+     */
+    public Bitmap get(Variant variant) {
+        return get(variant.getMemCacheKey());
+    }
+
+    /**
+     * Gets the smallest cached bitmap of another variant that can be
+     * downscaled to the requested one.
+     *
+     * @param variant
+     *            the requested variant
+     * @return the bitmap, or null if no larger variant is cached
+     */
+    public Bitmap getCovering(Variant variant) {
+        return getSmallest(getCandidates(variant));
+    }
+
+    /**
+     * Gets the variants that can be downscaled to a variant.
+     */
+    private List<Variant> getCandidates(Variant variant) {
+        List<Variant> candidates = new ArrayList<Variant>();
+        synchronized (mVariants) {
+            Map<String, Variant> group = mVariants.get(variant.getMemCacheGroup());
+            if (group == null) {
+                return candidates;
+            }
+            for (Iterator<Variant> iterator = group.values().iterator(); iterator.hasNext();) {
+                Variant next = iterator.next();
+                if (next.canDownscaleTo(variant)) {
+                    candidates.add(next);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Gets the smallest cached bitmap of some variants.
+     */
+    private Bitmap getSmallest(List<Variant> candidates) {
+        Bitmap best = null;
+        for (int i = 0; i < candidates.size(); i++) {
+            Bitmap bitmap = get(candidates.get(i).getMemCacheKey());
+            if (bitmap != null && (best == null || getBitmapBytes(bitmap) < getBitmapBytes(best))) {
+                best = bitmap;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Gets the default cache size in bytes, 1/8 of the device memory class.
+     *
+     * @param context
+     *            the context
+     * @return the default size in bytes
+     */
+    public static int getDefaultMaxBytes(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return am.getMemoryClass() * 1024 * 1024 / DEFAULT_MEMORY_CLASS_DIVIDER;
+    }
+
+    /**
+     * Gets the size of a bitmap in bytes.
+     *
+     * @param bitmap
+     *            the bitmap
+     * @return the size in bytes
+     */
+    public static int getBitmapBytes(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Copy the entries of this cache, least recently used first, into another
+     * one, which shares the references to them and the pool. The target cache
+     * evicts whatever does not fit its budget. This cache no longer pools what
+     * it evicts.
+     *
+     * @param target
+     *            the target cache
+     */
+    public void copyTo(BitmapLruCache target) {
+        // bitmaps this cache still evicts may be in the target, only the
+        // target pools from now on
+        mRetired = true;
+        target.mReferences = mReferences;
+        Map<String, Bitmap> snapshot = snapshot();
+        for (Iterator<Entry<String, Bitmap>> iterator = snapshot.entrySet().iterator(); iterator.hasNext();) {
+            Entry<String, Bitmap> next = iterator.next();
+            Variant variant = null;
+            synchronized (mVariants) {
+                String groupKey = mVariantGroups.get(next.getKey());
+                if (groupKey != null) {
+                    variant = mVariants.get(groupKey).get(next.getKey());
+                }
+            }
+            if (variant != null) {
+                target.put(variant, next.getValue());
+            } else {
+                target.put(next.getKey(), next.getValue());
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see android.support.v4.util.LruCache#sizeOf(java.lang.Object,
+     * java.lang.Object)
+     */
+    @Override
+    protected int sizeOf(String key, Bitmap value) {
+        return getBitmapBytes(value);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see android.support.v4.util.LruCache#entryRemoved(boolean,
+     * java.lang.Object, java.lang.Object, java.lang.Object)
+     */
+    @Override
+    protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+        if (newValue == null) {
+            removeVariant(key);
+        }
+        if (oldValue == newValue || mRetired) {
+            return;
+        }
+        References references = mReferences;
+        synchronized (references) {
+            if (references.counts.containsKey(oldValue)) {
+                // still drawn, pooled on its last release
+                references.evicted.put(oldValue, Boolean.TRUE);
+            } else {
+                references.offer(oldValue);
+            }
+        }
+    }
+
+    private void removeVariant(String key) {
+        synchronized (mVariants) {
+            String groupKey = mVariantGroups.remove(key);
+            Map<String, Variant> group = groupKey != null ? mVariants.get(groupKey) : null;
+            if (group != null) {
+                group.remove(key);
+                if (group.isEmpty()) {
+                    mVariants.remove(groupKey);
+                }
+            }
+        }
+    }
+
+}
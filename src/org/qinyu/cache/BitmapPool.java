@@ -0,0 +1,205 @@
+package org.qinyu.cache;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+/**
+ * A pool of mutable bitmaps that can be decoded or drawn into again instead of
+ * allocating new ones.
+ *
+ * Bitmaps are grouped by width, height and {@link Config}. The pool is bounded
+ * by a byte budget and drops the least recently pooled bitmaps first. All
+ * methods are thread safe.
+ *
+ * Only bitmaps that nothing else can still draw may be pooled, such as the
+ * source of a transform; not bitmaps that were handed out or cached.
+ */
+public class BitmapPool {
+
+    /** The part of the per-application heap given to the default pool. */
+    private static final int DEFAULT_MEMORY_CLASS_DIVIDER = 16;
+
+    /** The pooled bitmaps, grouped by key. */
+    private final Map<String, LinkedList<Bitmap>> mGroups = new HashMap<String, LinkedList<Bitmap>>();
+
+    /** All pooled bitmaps, least recently pooled first. */
+    private final LinkedList<Bitmap> mOrder = new LinkedList<Bitmap>();
+
+    /** The m max size. */
+    private int mMaxSize;
+
+    /** The m size. */
+    private int mSize;
+
+    /** The m hit count. */
+    private int mHitCount;
+
+    /** The m miss count. */
+    private int mMissCount;
+
+    /**
+     * Instantiates a new bitmap pool.
+     *
+     * @param maxBytes
+     *            the maximum size of the pool in bytes
+     */
+    public BitmapPool(int maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        mMaxSize = maxBytes;
+    }
+
+    /**
+     * Gets the default pool size in bytes, 1/16 of the device memory class.
+     *
+     * @param context
+     *            the context
+     * @return the default size in bytes
+     */
+    public static int getDefaultMaxBytes(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return am.getMemoryClass() * 1024 * 1024 / DEFAULT_MEMORY_CLASS_DIVIDER;
+    }
+
+    private static String getKey(int width, int height, Config config) {
+        return width + "x" + height + ":" + config;
+    }
+
+    /**
+     * Put a bitmap in the pool. Immutable or recycled bitmaps and bitmaps
+     * larger than the whole budget are ignored. The caller must not use the
+     * bitmap after it is pooled.
+     *
+     * @param bitmap
+     *            the bitmap
+     * @return true, if the bitmap was pooled
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null) {
+            return false;
+        }
+        int bytes = BitmapLruCache.getBitmapBytes(bitmap);
+        if (bytes > mMaxSize || mOrder.contains(bitmap)) {
+            return false;
+        }
+        String key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        LinkedList<Bitmap> group = mGroups.get(key);
+        if (group == null) {
+            group = new LinkedList<Bitmap>();
+            mGroups.put(key, group);
+        }
+        group.addLast(bitmap);
+        mOrder.addLast(bitmap);
+        mSize += bytes;
+        trimToSize(mMaxSize);
+        return true;
+    }
+
+    /**
+     * Take a bitmap of the given size and config out of the pool. The content
+     * of the returned bitmap is undefined.
+     *
+     * @param width
+     *            the width
+     * @param height
+     *            the height
+     * @param config
+     *            the config
+     * @return the bitmap, or null if none is pooled
+     */
+    public synchronized Bitmap get(int width, int height, Config config) {
+        LinkedList<Bitmap> group = mGroups.get(getKey(width, height, config));
+        if (group == null || group.isEmpty()) {
+            mMissCount++;
+            return null;
+        }
+        Bitmap bitmap = group.removeLast();
+        if (group.isEmpty()) {
+            mGroups.remove(getKey(width, height, config));
+        }
+        mOrder.remove(bitmap);
+        mSize -= BitmapLruCache.getBitmapBytes(bitmap);
+        mHitCount++;
+        return bitmap;
+    }
+
+    /**
+     * Sets the pool budget, dropping bitmaps that no longer fit.
+     *
+     * @param maxBytes
+     *            the maximum size of the pool in bytes
+     */
+    public synchronized void setMaxSize(int maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        mMaxSize = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * Drop all pooled bitmaps.
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    private void trimToSize(int maxSize) {
+        while (mSize > maxSize && !mOrder.isEmpty()) {
+            Bitmap eldest = mOrder.removeFirst();
+            String key = getKey(eldest.getWidth(), eldest.getHeight(), eldest.getConfig());
+            LinkedList<Bitmap> group = mGroups.get(key);
+            if (group != null) {
+                group.remove(eldest);
+                if (group.isEmpty()) {
+                    mGroups.remove(key);
+                }
+            }
+            mSize -= BitmapLruCache.getBitmapBytes(eldest);
+        }
+    }
+
+    /**
+     * Gets the bytes currently held by the pool.
+     *
+     * @return the size in bytes
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Gets the pool budget.
+     *
+     * @return the maximum size in bytes
+     */
+    public synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Gets the number of requests served from the pool.
+     *
+     * @return the hit count
+     */
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Gets the number of requests that had to allocate.
+     *
+     * @return the miss count
+     */
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+}
@@ -0,0 +1,504 @@
+package org.qinyu.cache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The index of a file cache: the size of each entry, least recently used
+ * first, backed by an append-only journal.
+ *
+ * Every change is appended to the journal as one line, PUT with the size of
+ * the entry, READ or DEL. Reads are only kept in memory at first and written
+ * in batches: once {@link #READ_BATCH} entries were read, by the first read
+ * that comes {@link #FLUSH_INTERVAL} after the oldest pending one, before the
+ * next PUT or DEL, or on {@link #flush()}. There is no timer, reads that no
+ * other change follows wait for the cache to be flushed. The index itself is
+ * always in true LRU order.
+ *
+ * At startup the index is rebuilt by replaying the journal instead of listing
+ * and stating the cache directory. A line cut off by a crash ends the replay,
+ * and the cache then adopts the entry files that were written after it, see
+ * {@link #isTruncated()}. Once the journal holds many more lines than entries
+ * it is compacted: a new one is written beside it and renamed over it, so
+ * there is always a complete journal on disk.
+ *
+ * Not thread safe, the cache guards it with its lock.
+ */
+class CacheJournal {
+
+    /** The Constant TAG. */
+    private static final String TAG = CacheJournal.class.getSimpleName();
+
+    /** The name of the journal file. */
+    static final String JOURNAL_FILE = "journal";
+
+    /** The name of the journal being compacted. */
+    private static final String JOURNAL_FILE_TEMP = "journal.tmp";
+
+    /** The first line of a journal. */
+    private static final String MAGIC = "org.qinyu.cache.journal";
+
+    /** The second line of a journal. */
+    private static final String VERSION = "1";
+
+    private static final String PUT = "PUT";
+
+    private static final String READ = "READ";
+
+    private static final String DEL = "DEL";
+
+    /** The number of redundant lines that makes the journal worth compacting. */
+    private static final int COMPACT_THRESHOLD = 2000;
+
+    /** The number of read entries written at once. */
+    static final int READ_BATCH = 64;
+
+    /** The age of the oldest pending read that makes the next read write. */
+    static final long FLUSH_INTERVAL = 30 * 1000;
+
+    /** The m directory. */
+    private final File mDirectory;
+
+    /** The sizes of the entries, by file name, least recently used first. */
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    /** The m writer, null if the journal can not be written. */
+    private Writer mWriter;
+
+    /** The lines that do not add to the index. */
+    private int mRedundant;
+
+    /** The total size of the entries. */
+    private long mSize;
+
+    /** The entries read since the last write, least recently read first. */
+    private final LinkedHashSet<String> mPendingReads = new LinkedHashSet<String>();
+
+    /** The time of the first read since the last write. */
+    private long mFirstPendingRead;
+
+    /** Whether the last read stopped before the end of the journal. */
+    private boolean mTruncated;
+
+    /** Whether the writer was closed by {@link #close()}, not by a failure. */
+    private boolean mClosed;
+
+    /**
+     * Instantiates a new cache journal.
+     *
+     * @param directory
+     *            the cache directory
+     */
+    CacheJournal(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Read the journal and open it for appending.
+     *
+     * @return true, if the journal was read; false if there is none or it is
+     *         not a journal, the index is then empty and should be rebuilt
+     */
+    boolean read() {
+        File file = new File(mDirectory, JOURNAL_FILE);
+        if (!file.exists()) {
+            return false;
+        }
+        BufferedReader reader = null;
+        boolean truncated = false;
+        boolean complete = endsWithNewline(file);
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "US-ASCII"), 8192);
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                return false;
+            }
+            String line = reader.readLine();
+            while (line != null) {
+                String next = reader.readLine();
+                // a last line without its newline was cut off by a crash
+                if (next == null && !complete || !replay(line)) {
+                    truncated = true;
+                    break;
+                }
+                line = next;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can not read journal", e);
+            truncated = true;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        mTruncated = truncated;
+        if (truncated || isCompactionDue()) {
+            compact();
+        } else {
+            openWriter();
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the last {@link #read()} stopped before the end of the
+     * journal, at a line cut off by a crash or one that can not be parsed.
+     * Entries written after that line are then missing from the index.
+     *
+     * @return true, if truncated
+     */
+    boolean isTruncated() {
+        return mTruncated;
+    }
+
+    private static boolean endsWithNewline(File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            long length = raf.length();
+            if (length == 0) {
+                return true;
+            }
+            raf.seek(length - 1);
+            return raf.read() == '\n';
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply one line of the journal to the index.
+     *
+     * @return false, if the line is malformed
+     */
+    private boolean replay(String line) {
+        String[] parts = line.split(" ");
+        if (parts.length == 3 && PUT.equals(parts[0])) {
+            long size;
+            try {
+                size = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            Long previous = mEntries.put(parts[1], size);
+            if (previous != null) {
+                mSize -= previous;
+                mRedundant++;
+            }
+            mSize += size;
+        } else if (parts.length == 2 && READ.equals(parts[0])) {
+            mEntries.get(parts[1]);
+            mRedundant++;
+        } else if (parts.length == 2 && DEL.equals(parts[0])) {
+            Long previous = mEntries.remove(parts[1]);
+            if (previous != null) {
+                mSize -= previous;
+            }
+            mRedundant += 2;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Replace the index with the given files, least recently used first, and
+     * write a new journal.
+     *
+     * @param files
+     *            the entry files
+     */
+    void rebuild(List<File> files) {
+        mEntries.clear();
+        mSize = 0;
+        for (int i = 0; i < files.size(); i++) {
+            File f = files.get(i);
+            long size = f.length();
+            mEntries.put(f.getName(), size);
+            mSize += size;
+        }
+        compact();
+    }
+
+    /**
+     * Record a new or replaced entry as the most recently used.
+     *
+     * @param name
+     *            the file name of the entry
+     * @param size
+     *            the size
+     * @return the size of the replaced entry, or null
+     */
+    Long put(String name, long size) {
+        Long previous = mEntries.put(name, size);
+        if (previous != null) {
+            mSize -= previous;
+            mRedundant++;
+        }
+        mSize += size;
+        append(PUT + " " + name + " " + size);
+        return previous;
+    }
+
+    /**
+     * Record a read of an entry, making it the most recently used.
+     *
+     * @param name
+     *            the file name of the entry
+     * @return the size of the entry, or null if it is not in the index
+     */
+    Long touch(String name) {
+        Long size = mEntries.get(name);
+        if (size == null) {
+            return null;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (mPendingReads.isEmpty()) {
+            mFirstPendingRead = now;
+        }
+        // only the last read of an entry matters
+        mPendingReads.remove(name);
+        mPendingReads.add(name);
+        if (mPendingReads.size() >= READ_BATCH || now - mFirstPendingRead >= FLUSH_INTERVAL) {
+            flush();
+        }
+        return size;
+    }
+
+    /**
+     * Write the reads kept in memory to the journal.
+     */
+    void flush() {
+        if (mPendingReads.isEmpty()) {
+            return;
+        }
+        if (writePendingReads()) {
+            try {
+                mWriter.flush();
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            if (isCompactionDue()) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Write the pending reads without flushing the writer.
+     *
+     * @return true, if the journal can still be written
+     */
+    private boolean writePendingReads() {
+        if (mWriter == null && mClosed) {
+            mClosed = false;
+            openWriter();
+        }
+        if (mWriter == null) {
+            mPendingReads.clear();
+            return false;
+        }
+        try {
+            for (String name : mPendingReads) {
+                mWriter.write(READ + " " + name + "\n");
+            }
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+        mRedundant += mPendingReads.size();
+        mPendingReads.clear();
+        return true;
+    }
+
+    /**
+     * Record the removal of an entry.
+     *
+     * @param name
+     *            the file name of the entry
+     * @return the size of the removed entry, or null if there was none
+     */
+    Long remove(String name) {
+        Long previous = mEntries.remove(name);
+        if (previous != null) {
+            mSize -= previous;
+            mRedundant += 2;
+            append(DEL + " " + name);
+        }
+        return previous;
+    }
+
+    /**
+     * Checks if an entry is in the index, without making it more recent.
+     *
+     * @param name
+     *            the file name of the entry
+     * @return true, if the entry is in the index
+     */
+    boolean contains(String name) {
+        return mEntries.containsKey(name);
+    }
+
+    /**
+     * Gets the sizes of the entries by file name, least recently used first.
+     *
+     * @return a copy of the entries
+     */
+    Map<String, Long> entries() {
+        return new LinkedHashMap<String, Long>(mEntries);
+    }
+
+    /**
+     * Gets the total size of the entries.
+     *
+     * @return the size
+     */
+    long size() {
+        return mSize;
+    }
+
+    /**
+     * Gets the number of entries.
+     *
+     * @return the count
+     */
+    int count() {
+        return mEntries.size();
+    }
+
+    /**
+     * Empty the index and the journal.
+     */
+    void clear() {
+        mEntries.clear();
+        mSize = 0;
+        compact();
+    }
+
+    /**
+     * Close the journal. It is opened again by the next change.
+     */
+    void close() {
+        flush();
+        if (mWriter != null) {
+            closeWriter();
+            mClosed = true;
+        }
+    }
+
+    private boolean isCompactionDue() {
+        return mRedundant >= COMPACT_THRESHOLD && mRedundant >= mEntries.size();
+    }
+
+    private void append(String line) {
+        // keep the journal in the order things happened
+        if (!writePendingReads()) {
+            return;
+        }
+        try {
+            mWriter.write(line);
+            mWriter.write('\n');
+            mWriter.flush();
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        if (isCompactionDue()) {
+            compact();
+        }
+    }
+
+    /**
+     * Write the index as a new journal and rename it over the old one.
+     */
+    private void compact() {
+        // the order of the index already includes the pending reads
+        mPendingReads.clear();
+        closeWriter();
+        mClosed = false;
+        File temp = new File(mDirectory, JOURNAL_FILE_TEMP);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "US-ASCII"), 8192);
+            writer.write(MAGIC);
+            writer.write('\n');
+            writer.write(VERSION);
+            writer.write('\n');
+            for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                writer.write(PUT + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+            writer.close();
+            writer = null;
+            if (!temp.renameTo(new File(mDirectory, JOURNAL_FILE))) {
+                throw new IOException("Can not rename " + temp);
+            }
+            mRedundant = 0;
+        } catch (IOException e) {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e1) {
+                }
+            }
+            temp.delete();
+            fail(e);
+            return;
+        }
+        openWriter();
+    }
+
+    private void openWriter() {
+        try {
+            mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(mDirectory,
+                    JOURNAL_FILE), true), "US-ASCII"), 8192);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void closeWriter() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+            }
+            mWriter = null;
+        }
+    }
+
+    /**
+     * Stop journaling after a write failed. The journal is deleted, as it no
+     * longer matches the index, so the next startup rebuilds it.
+     */
+    private void fail(IOException e) {
+        Log.w(TAG, "Can not write journal", e);
+        closeWriter();
+        new File(mDirectory, JOURNAL_FILE).delete();
+    }
+
+}
@@ -0,0 +1,377 @@
+package org.qinyu.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * The Class CacheMetadata.
+ *
+ * The http validators and freshness of a disk cache entry, stored beside the
+ * entry so that a stale entry can be revalidated with a conditional request
+ * instead of downloaded again. An entry made from a local file instead keeps
+ * the length and modification time of the file, see {@link #forSource}.
+ */
+public class CacheMetadata {
+
+    /** The max age when the response did not give one; never stale. */
+    public static final long UNKNOWN_MAX_AGE = -1;
+
+    private static final String KEY_ETAG = "etag";
+
+    private static final String KEY_LAST_MODIFIED = "last-modified";
+
+    private static final String KEY_MAX_AGE = "max-age";
+
+    private static final String KEY_FETCH_TIME = "fetch-time";
+
+    private static final String KEY_SOURCE_LENGTH = "source-length";
+
+    private static final String KEY_SOURCE_MODIFIED = "source-modified";
+
+    /** The ETag, may be null. */
+    private final String mETag;
+
+    /** The Last-Modified header, may be null. */
+    private final String mLastModified;
+
+    /** The max age in seconds, or {@link #UNKNOWN_MAX_AGE}. */
+    private final long mMaxAge;
+
+    /** The time the response was received. */
+    private final long mFetchTime;
+
+    /** The length of the local source, or -1 if not made from one. */
+    private final long mSourceLength;
+
+    /** The modification time of the local source, 0 if unknown. */
+    private final long mSourceModified;
+
+    /**
+     * Instantiates a new cache metadata.
+     *
+     * @param etag
+     *            the ETag, may be null
+     * @param lastModified
+     *            the Last-Modified header, may be null
+     * @param maxAge
+     *            the max age in seconds, or {@link #UNKNOWN_MAX_AGE}
+     * @param fetchTime
+     *            the time the response was received
+     */
+    public CacheMetadata(String etag, String lastModified, long maxAge, long fetchTime) {
+        this(etag, lastModified, maxAge, fetchTime, -1, 0);
+    }
+
+    /**
+     * Instantiates a new cache metadata, with the local source it was made
+     * from.
+     */
+    private CacheMetadata(String etag, String lastModified, long maxAge, long fetchTime, long sourceLength,
+            long sourceModified) {
+        mETag = etag;
+        mLastModified = lastModified;
+        mMaxAge = maxAge;
+        mFetchTime = fetchTime;
+        mSourceLength = sourceLength;
+        mSourceModified = sourceModified;
+    }
+
+    /**
+     * Gets the metadata of an entry made from a local file, which has no http
+     * validators; the entry is current while the file keeps its length and
+     * modification time.
+     *
+     * @param length
+     *            the length of the file, or -1 if unknown
+     * @param modified
+     *            the modification time of the file, 0 if unknown
+     * @return the metadata
+     */
+    public static CacheMetadata forSource(long length, long modified) {
+        return new CacheMetadata(null, null, UNKNOWN_MAX_AGE, System.currentTimeMillis(), Math.max(-1, length),
+                modified);
+    }
+
+    /**
+     * Parse the max age of a Cache-Control header. no-cache and no-store give
+     * 0, so that the entry is revalidated every time.
+     *
+     * @param cacheControl
+     *            the header, may be null
+     * @return the max age in seconds, or {@link #UNKNOWN_MAX_AGE}
+     */
+    public static long parseMaxAge(String cacheControl) {
+        if (cacheControl == null) {
+            return UNKNOWN_MAX_AGE;
+        }
+        long maxAge = UNKNOWN_MAX_AGE;
+        String[] directives = cacheControl.split(",");
+        for (int i = 0; i < directives.length; i++) {
+            String directive = directives[i].trim().toLowerCase();
+            if (directive.equals("no-cache") || directive.equals("no-store")) {
+                return 0;
+            } else if (directive.startsWith("max-age=")) {
+                try {
+                    maxAge = Math.max(0, Long.parseLong(directive.substring(8).replace("\"", "").trim()));
+                } catch (NumberFormatException e) {
+                    maxAge = 0;
+                }
+            }
+        }
+        return maxAge;
+    }
+
+    /**
+     * Gets the ETag.
+     *
+     * @return the ETag, may be null
+     */
+    public String getETag() {
+        return mETag;
+    }
+
+    /**
+     * Gets the Last-Modified header.
+     *
+     * @return the Last-Modified header, may be null
+     */
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * Gets the max age.
+     *
+     * @return the max age in seconds, or {@link #UNKNOWN_MAX_AGE}
+     */
+    public long getMaxAge() {
+        return mMaxAge;
+    }
+
+    /**
+     * Gets the fetch time.
+     *
+     * @return the time the response was received
+     */
+    public long getFetchTime() {
+        return mFetchTime;
+    }
+
+    /**
+     * Checks if the entry can be used without asking the server.
+     *
+     * @param now
+     *            the current time
+     * @return true, if fresh
+     */
+    public boolean isFresh(long now) {
+        return mMaxAge == UNKNOWN_MAX_AGE || now - mFetchTime < mMaxAge * 1000;
+    }
+
+    /**
+     * Checks if a conditional request can be made for the entry.
+     *
+     * @return true, if there is a validator
+     */
+    public boolean hasValidator() {
+        return mETag != null || mLastModified != null;
+    }
+
+    /**
+     * Checks if other metadata has the same validators, that is, describes
+     * the same version of the resource.
+     *
+     * @param other
+     *            the other metadata
+     * @return true, if the ETag and Last-Modified are the same
+     */
+    public boolean hasSameValidator(CacheMetadata other) {
+        return (mETag == null ? other.mETag == null : mETag.equals(other.mETag))
+                && (mLastModified == null ? other.mLastModified == null : mLastModified.equals(other.mLastModified));
+    }
+
+    /**
+     * Checks if the entry was made from a local file, see {@link #forSource}.
+     *
+     * @return true, if it keeps the length or modification time of the file
+     */
+    public boolean hasSource() {
+        return mSourceLength >= 0 || mSourceModified != 0;
+    }
+
+    /**
+     * Checks if other metadata describes the same version of a local file.
+     *
+     * @param other
+     *            the other metadata
+     * @return true, if both have the same length and modification time
+     */
+    public boolean hasSameSource(CacheMetadata other) {
+        return hasSource() && mSourceLength == other.mSourceLength && mSourceModified == other.mSourceModified;
+    }
+
+    /**
+     * Gets the metadata of a revalidated entry. Validators and max age sent
+     * with the 304 replace the stored ones.
+     *
+     * @param etag
+     *            the ETag of the 304, may be null
+     * @param lastModified
+     *            the Last-Modified of the 304, may be null
+     * @param maxAge
+     *            the max age of the 304, or {@link #UNKNOWN_MAX_AGE}
+     * @param fetchTime
+     *            the time the 304 was received
+     * @return the refreshed metadata
+     */
+    public CacheMetadata refresh(String etag, String lastModified, long maxAge, long fetchTime) {
+        return new CacheMetadata(etag != null ? etag : mETag, lastModified != null ? lastModified : mLastModified,
+                maxAge != UNKNOWN_MAX_AGE ? maxAge : mMaxAge, fetchTime, mSourceLength, mSourceModified);
+    }
+
+    /**
+     * Read metadata from a file.
+     *
+     * @param file
+     *            the file
+     * @return the metadata, or null if the file is missing or unreadable
+     */
+    static CacheMetadata read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            return load(in);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Write metadata to a file. It is written beside the file and renamed over
+     * it, so a reader sees either the old or the new metadata.
+     *
+     * @param file
+     *            the file
+     * @return true, if written
+     */
+    boolean write(File file) {
+        Properties properties = toProperties();
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            properties.store(out, null);
+            out.close();
+            out = null;
+            if (temp.renameTo(file)) {
+                return true;
+            }
+            temp.delete();
+            file.delete();
+            return false;
+        } catch (IOException e) {
+            temp.delete();
+            file.delete();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Read metadata written by {@link #toBytes()}.
+     *
+     * @param bytes
+     *            the bytes
+     * @return the metadata, or null if the bytes are not metadata
+     */
+    static CacheMetadata fromBytes(byte[] bytes) {
+        try {
+            return load(new ByteArrayInputStream(bytes));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write the metadata to bytes, for a cache that keeps it together with the
+     * entry instead of in a file of its own.
+     *
+     * @return the bytes
+     */
+    byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        try {
+            toProperties().store(out, null);
+        } catch (IOException e) {
+            // not thrown by a byte array
+        }
+        return out.toByteArray();
+    }
+
+    private static CacheMetadata load(InputStream in) throws IOException {
+        Properties properties = new Properties();
+        properties.load(in);
+        try {
+            return new CacheMetadata(properties.getProperty(KEY_ETAG), properties.getProperty(KEY_LAST_MODIFIED),
+                    Long.parseLong(properties.getProperty(KEY_MAX_AGE, String.valueOf(UNKNOWN_MAX_AGE))),
+                    Long.parseLong(properties.getProperty(KEY_FETCH_TIME, "0")),
+                    Long.parseLong(properties.getProperty(KEY_SOURCE_LENGTH, "-1")),
+                    Long.parseLong(properties.getProperty(KEY_SOURCE_MODIFIED, "0")));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private Properties toProperties() {
+        Properties properties = new Properties();
+        if (mETag != null) {
+            properties.setProperty(KEY_ETAG, mETag);
+        }
+        if (mLastModified != null) {
+            properties.setProperty(KEY_LAST_MODIFIED, mLastModified);
+        }
+        properties.setProperty(KEY_MAX_AGE, String.valueOf(mMaxAge));
+        properties.setProperty(KEY_FETCH_TIME, String.valueOf(mFetchTime));
+        if (hasSource()) {
+            properties.setProperty(KEY_SOURCE_LENGTH, String.valueOf(mSourceLength));
+            properties.setProperty(KEY_SOURCE_MODIFIED, String.valueOf(mSourceModified));
+        }
+        return properties;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "CacheMetadata [etag=" + mETag + ", lastModified=" + mLastModified + ", maxAge=" + mMaxAge
+                + ", fetchTime=" + mFetchTime + ", sourceLength=" + mSourceLength + ", sourceModified="
+                + mSourceModified + "]";
+    }
+
+}
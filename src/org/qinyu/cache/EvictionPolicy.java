@@ -0,0 +1,52 @@
+package org.qinyu.cache;
+
+/**
+ * The Interface EvictionPolicy.
+ *
+ * Decides which entry of a file cache is evicted next. The cache tells the
+ * policy about every entry that is written, read and removed, and asks it for
+ * a victim while it is over its limit.
+ *
+ * Not thread safe, the cache calls it with its lock held.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * An entry was written, or replaced.
+     *
+     * @param name
+     *            the file name of the entry
+     * @param size
+     *            the size of the entry
+     */
+    void onPut(String name, long size);
+
+    /**
+     * An entry was read.
+     *
+     * @param name
+     *            the file name of the entry
+     */
+    void onAccess(String name);
+
+    /**
+     * An entry was removed, evicted or not.
+     *
+     * @param name
+     *            the file name of the entry
+     */
+    void onRemove(String name);
+
+    /**
+     * Gets the entry to evict next. The cache removes it before asking again.
+     *
+     * @return the file name of the entry, or null if there are none
+     */
+    String victim();
+
+    /**
+     * Forget all entries.
+     */
+    void clear();
+
+}
@@ -0,0 +1,188 @@
+package org.qinyu.cache;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * The Class GreedyDualSizePolicy.
+ *
+ * Evicts by GreedyDual-Size: an entry is worth the cost of fetching it again
+ * per byte it takes, plus an inflation value that rises to the worth of each
+ * evicted entry. The entry worth the least is evicted, and a read raises an
+ * entry back to its full worth above the current inflation, which ages the
+ * entries that are not read. So a large image is evicted long before the many
+ * small thumbnails it would otherwise push out, unless it is read much more
+ * often.
+ *
+ * Refetching an entry costs a request, plus the transfer of its bytes; by
+ * default a request costs as much as 32 KB of transfer, roughly a round trip
+ * on a mobile network.
+ *
+ * The worths and the inflation are kept in memory only. When the cache starts
+ * again, or the policy is set, the entries are put in least recently used
+ * order with an inflation of 0, so they are ranked by their cost per byte
+ * alone, the least recently used first among equals, until reads and
+ * evictions age them again.
+ */
+public class GreedyDualSizePolicy implements EvictionPolicy {
+
+    /** The default cost of a request. */
+    public static final double DEFAULT_REQUEST_COST = 1;
+
+    /** The default number of bytes transferred for the cost of one request. */
+    public static final long DEFAULT_BYTES_PER_COST = 32 * 1024;
+
+    /** The m request cost. */
+    private final double mRequestCost;
+
+    /** The m bytes per cost. */
+    private final long mBytesPerCost;
+
+    /** The worth of the last evicted entry, L in the paper. */
+    private double mInflation;
+
+    /** Breaks ties between entries of the same worth, oldest first. */
+    private long mSequence;
+
+    /** The entries by file name. */
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    /** The entries, least worth first. */
+    private final TreeSet<Entry> mQueue = new TreeSet<Entry>(new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            int result = Double.compare(lhs.worth, rhs.worth);
+            if (result == 0) {
+                result = lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+            }
+            return result;
+        }
+    });
+
+    private static class Entry {
+
+        final String name;
+
+        final long size;
+
+        /** The worth, only changed while out of the queue. */
+        double worth;
+
+        long sequence;
+
+        Entry(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Instantiates a new greedy dual size policy with the default costs.
+     */
+    public GreedyDualSizePolicy() {
+        this(DEFAULT_REQUEST_COST, DEFAULT_BYTES_PER_COST);
+    }
+
+    /**
+     * Instantiates a new greedy dual size policy.
+     *
+     * @param requestCost
+     *            the cost of a request
+     * @param bytesPerCost
+     *            the number of bytes transferred for the cost of 1
+     */
+    public GreedyDualSizePolicy(double requestCost, long bytesPerCost) {
+        if (requestCost < 0 || bytesPerCost <= 0) {
+            throw new IllegalArgumentException("requestCost:" + requestCost + ",bytesPerCost:" + bytesPerCost);
+        }
+        mRequestCost = requestCost;
+        mBytesPerCost = bytesPerCost;
+    }
+
+    /**
+     * Gets the cost of fetching an entry again.
+     *
+     * @param size
+     *            the size of the entry
+     * @return the cost
+     */
+    protected double getCost(long size) {
+        return mRequestCost + (double) size / mBytesPerCost;
+    }
+
+    private void enqueue(Entry entry) {
+        entry.worth = mInflation + getCost(entry.size) / Math.max(1, entry.size);
+        entry.sequence = mSequence++;
+        mQueue.add(entry);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.EvictionPolicy#onPut(java.lang.String, long)
+     */
+    @Override
+    public void onPut(String name, long size) {
+        onRemove(name);
+        Entry entry = new Entry(name, size);
+        mEntries.put(name, entry);
+        enqueue(entry);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.EvictionPolicy#onAccess(java.lang.String)
+     */
+    @Override
+    public void onAccess(String name) {
+        Entry entry = mEntries.get(name);
+        if (entry != null) {
+            mQueue.remove(entry);
+            enqueue(entry);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.EvictionPolicy#onRemove(java.lang.String)
+     */
+    @Override
+    public void onRemove(String name) {
+        Entry entry = mEntries.remove(name);
+        if (entry != null) {
+            mQueue.remove(entry);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.EvictionPolicy#victim()
+     */
+    @Override
+    public String victim() {
+        if (mQueue.isEmpty()) {
+            return null;
+        }
+        Entry entry = mQueue.first();
+        mInflation = entry.worth;
+        return entry.name;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.EvictionPolicy#clear()
+     */
+    @Override
+    public void clear() {
+        mEntries.clear();
+        mQueue.clear();
+        mInflation = 0;
+        mSequence = 0;
+    }
+
+}
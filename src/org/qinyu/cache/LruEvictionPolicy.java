@@ -0,0 +1,68 @@
+package org.qinyu.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The Class LruEvictionPolicy.
+ *
+ * Evicts the least recently used entry, whatever its size.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    /** The entries, least recently used first. */
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.EvictionPolicy#onPut(java.lang.String, long)
+     */
+    @Override
+    public void onPut(String name, long size) {
+        mEntries.remove(name);
+        mEntries.put(name, size);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.EvictionPolicy#onAccess(java.lang.String)
+     */
+    @Override
+    public void onAccess(String name) {
+        mEntries.get(name);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.EvictionPolicy#onRemove(java.lang.String)
+     */
+    @Override
+    public void onRemove(String name) {
+        mEntries.remove(name);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.EvictionPolicy#victim()
+     */
+    @Override
+    public String victim() {
+        Iterator<String> iterator = mEntries.keySet().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.EvictionPolicy#clear()
+     */
+    @Override
+    public void clear() {
+        mEntries.clear();
+    }
+
+}
@@ -0,0 +1,130 @@
+package org.qinyu.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-only memory mappings of cache files, the least recently used dropped
+ * once there are too many or they map too many bytes. A mapping can not be
+ * unmapped explicitly; one that is dropped is unmapped by the garbage
+ * collector once no stream reads it.
+ *
+ * A file must not be truncated below what is mapped of it, reading there
+ * crashes the process. Files that are replaced or deleted must be removed, the
+ * mapping still shows the old bytes.
+ */
+class MappedFiles {
+
+    /** The mappings by file, least recently used first. */
+    private final LinkedHashMap<File, MappedByteBuffer> mMappings = new LinkedHashMap<File, MappedByteBuffer>(16,
+            0.75f, true);
+
+    /** The maximum number of mappings kept. */
+    private final int mMaxMappings;
+
+    /** The maximum number of bytes mapped. */
+    private final long mMaxBytes;
+
+    /** The longest file that is mapped whole. */
+    private final long mMaxFileLength;
+
+    /** The number of bytes mapped. */
+    private long mBytes;
+
+    /**
+     * Instantiates a new set of mappings.
+     *
+     * @param maxMappings
+     *            the maximum number of mappings kept
+     * @param maxBytes
+     *            the maximum number of bytes mapped, the most recently used
+     *            mapping is kept even if it is larger
+     * @param maxFileLength
+     *            the longest file that is mapped whole, longer ones are left
+     *            to be read
+     */
+    MappedFiles(int maxMappings, long maxBytes, long maxFileLength) {
+        mMaxMappings = maxMappings;
+        mMaxBytes = maxBytes;
+        mMaxFileLength = maxFileLength;
+    }
+
+    /**
+     * Gets a view of a mapped file, mapping it if it is not yet or not far
+     * enough.
+     *
+     * @param file
+     *            the file
+     * @param end
+     *            the end of the bytes that must be mapped, or -1 for the
+     *            whole file
+     * @param size
+     *            the number of bytes to map if the file is mapped again, at
+     *            least end; or -1 for the whole file
+     * @return a view of the mapping, with its own position; or null if the
+     *         whole file was asked for and it is too long
+     * @throws IOException
+     *             if the file can not be mapped
+     */
+    synchronized ByteBuffer map(File file, long end, long size) throws IOException {
+        MappedByteBuffer mapping = mMappings.get(file);
+        if (mapping == null || mapping.capacity() < end) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                if (size < 0 && raf.length() > mMaxFileLength) {
+                    return null;
+                }
+                // the mapping outlives the channel
+                mapping = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                        size < 0 ? raf.length() : Math.max(size, end));
+            } finally {
+                raf.close();
+            }
+            remove(file);
+            mMappings.put(file, mapping);
+            mBytes += mapping.capacity();
+            trim();
+        }
+        return mapping.duplicate();
+    }
+
+    /**
+     * Drop the least recently used mappings until the limits are met.
+     */
+    private void trim() {
+        Iterator<MappedByteBuffer> iterator = mMappings.values().iterator();
+        while (mMappings.size() > 1 && (mMappings.size() > mMaxMappings || mBytes > mMaxBytes)) {
+            mBytes -= iterator.next().capacity();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Drop the mapping of a file that is replaced or deleted.
+     *
+     * @param file
+     *            the file
+     */
+    synchronized void remove(File file) {
+        MappedByteBuffer mapping = mMappings.remove(file);
+        if (mapping != null) {
+            mBytes -= mapping.capacity();
+        }
+    }
+
+    /**
+     * Drop all mappings.
+     */
+    synchronized void clear() {
+        mMappings.clear();
+        mBytes = 0;
+    }
+
+}
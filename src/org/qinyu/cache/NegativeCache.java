@@ -0,0 +1,118 @@
+package org.qinyu.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+/**
+ * The Class NegativeCache.
+ *
+ * Remembers keys that recently failed to load, each for its own time to live,
+ * so that they fail at once instead of being tried again. Holds at most a
+ * fixed number of keys and forgets the oldest first.
+ */
+public class NegativeCache {
+
+    /** The m expiry times, by key. */
+    private final LinkedHashMap<String, Long> mExpiries;
+
+    /** The m max size. */
+    private final int mMaxSize;
+
+    /** The m hit count. */
+    private int mHitCount;
+
+    /**
+     * Instantiates a new negative cache.
+     *
+     * @param maxSize
+     *            the maximum number of keys
+     */
+    public NegativeCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        mExpiries = new LinkedHashMap<String, Long>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > mMaxSize;
+            }
+        };
+    }
+
+    /**
+     * Remember a failed key.
+     *
+     * @param key
+     *            the key
+     * @param ttl
+     *            the time to live in milliseconds, nothing is remembered if 0
+     *            or less
+     */
+    public synchronized void put(String key, long ttl) {
+        mExpiries.remove(key);
+        if (ttl > 0) {
+            mExpiries.put(key, SystemClock.elapsedRealtime() + ttl);
+        }
+    }
+
+    /**
+     * Checks if a key failed recently.
+     *
+     * @param key
+     *            the key
+     * @return true, if the key failed and its time to live has not passed
+     */
+    public synchronized boolean contains(String key) {
+        Long expiry = mExpiries.get(key);
+        if (expiry == null) {
+            return false;
+        }
+        if (SystemClock.elapsedRealtime() >= expiry) {
+            mExpiries.remove(key);
+            return false;
+        }
+        mHitCount++;
+        return true;
+    }
+
+    /**
+     * Forget a key.
+     *
+     * @param key
+     *            the key
+     */
+    public synchronized void remove(String key) {
+        mExpiries.remove(key);
+    }
+
+    /**
+     * Forget all keys.
+     */
+    public synchronized void clear() {
+        mExpiries.clear();
+    }
+
+    /**
+     * Gets the number of keys, including expired ones not yet dropped.
+     *
+     * @return the size
+     */
+    public synchronized int size() {
+        return mExpiries.size();
+    }
+
+    /**
+     * Gets the number of lookups that found a failed key.
+     *
+     * @return the hit count
+     */
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+}
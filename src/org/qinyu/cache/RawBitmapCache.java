@@ -0,0 +1,207 @@
+package org.qinyu.cache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.util.Log;
+
+/**
+ * The Class RawBitmapCache.
+ *
+ * A disk cache of decoded pixels, for small images shown so often that even
+ * decoding them costs too much. An entry is a header with the width, height
+ * and config of the bitmap followed by its pixels, uncompressed; reading it
+ * back copies the pixels into a new or pooled bitmap without any codec. The
+ * entries are read through memory mappings and have their own byte budget,
+ * least recently used evicted first; an entry larger than a sixteenth of the
+ * budget is not kept, so a few large bitmaps can not push out the many small
+ * ones it is meant for.
+ *
+ * The budget covers the segment files, not only the entries: the entries get
+ * three quarters of it, and a segment is compacted once a quarter of it is
+ * dead, so the packed entries with their dead space stay within it. Besides
+ * the budget are the segment being written, at most 1 MB, and a header of a
+ * few hundred bytes per entry with its key and metadata, which entries too
+ * large to be packed keep in a file of their own.
+ *
+ * The pixels are stored in the layout of the device, a cache is only meant
+ * to be read on the device that wrote it.
+ */
+public class RawBitmapCache {
+
+    /** The Constant TAG. */
+    private static final String TAG = RawBitmapCache.class.getSimpleName();
+
+    /** The first int of an entry. */
+    private static final int MAGIC = 0x52415731;
+
+    /** The length of the header: magic, width, height and config. */
+    private static final int HEADER_LENGTH = 16;
+
+    /** The size up to which an entry is packed, a 128x128 ARGB_8888 bitmap. */
+    private static final int PACK_THRESHOLD = 64 * 1024 + HEADER_LENGTH;
+
+    /** The percentage of dead space at which a segment is compacted. */
+    private static final int MAX_DEAD_PERCENT = 25;
+
+    /** The m cache. */
+    private final AbstractFileCache mCache;
+
+    /** The largest entry that is kept. */
+    private final long mMaxEntryBytes;
+
+    /**
+     * Instantiates a new raw bitmap cache.
+     *
+     * @param context
+     *            the context
+     * @param cacheName
+     *            the cache name
+     * @param maxBytes
+     *            the budget of the cache in bytes, see the class comment
+     */
+    public RawBitmapCache(Context context, String cacheName, long maxBytes) {
+        long entryBytes = maxBytes * (100 - MAX_DEAD_PERCENT) / 100;
+        mCache = new SegmentFileCache(context, 1, cacheName, entryBytes, PACK_THRESHOLD, MAX_DEAD_PERCENT);
+        mCache.setMappedReads(true);
+        mMaxEntryBytes = maxBytes / 16;
+    }
+
+    /**
+     * Copy the pixels of a bitmap into an entry, without writing it. It is
+     * quick, so it can be done while the bitmap is known to be intact, and
+     * the entry written later with {@link #put(String, byte[], CacheMetadata)}.
+     *
+     * @param bitmap
+     *            the bitmap
+     * @return the entry, or null if the bitmap is too large to be kept
+     */
+    public byte[] encode(Bitmap bitmap) {
+        Config config = bitmap.getConfig();
+        long pixelBytes = (long) bitmap.getRowBytes() * bitmap.getHeight();
+        if (config == null || bitmap.isRecycled() || HEADER_LENGTH + pixelBytes > mMaxEntryBytes) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + (int) pixelBytes);
+        buffer.putInt(MAGIC);
+        buffer.putInt(bitmap.getWidth());
+        buffer.putInt(bitmap.getHeight());
+        buffer.putInt(config.ordinal());
+        bitmap.copyPixelsToBuffer(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Write an entry.
+     *
+     * @param key
+     *            the key
+     * @param entry
+     *            the entry, from {@link #encode(Bitmap)}
+     * @param metadata
+     *            the metadata, may be null
+     * @return true, if written
+     */
+    public boolean put(String key, byte[] entry, CacheMetadata metadata) {
+        AbstractFileCache.Editor editor = null;
+        try {
+            editor = mCache.edit(key, false);
+            OutputStream out = editor.getOutputStream();
+            out.write(entry);
+            AbstractFileCache.Editor committing = editor;
+            editor = null;
+            return committing.commit(metadata) != null;
+        } catch (IOException e) {
+            Log.w(TAG, "Can not save to cache!", e);
+            return false;
+        } finally {
+            if (editor != null) {
+                editor.abort();
+            }
+        }
+    }
+
+    /**
+     * Read an entry into a bitmap.
+     *
+     * @param key
+     *            the key
+     * @param pool
+     *            the pool to take the bitmap from, may be null
+     * @return the bitmap, or null if there is no readable entry
+     */
+    public Bitmap get(String key, BitmapPool pool) {
+        String location = mCache.getLocation(key);
+        if (location == null) {
+            return null;
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = mCache.getBuffer(location);
+        } catch (IOException e) {
+            Log.w(TAG, "Can not read " + location, e);
+            return null;
+        }
+        if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC) {
+            return null;
+        }
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        int ordinal = buffer.getInt();
+        Config[] configs = Config.values();
+        if (width <= 0 || height <= 0 || ordinal < 0 || ordinal >= configs.length) {
+            return null;
+        }
+        Bitmap bitmap = pool != null ? pool.get(width, height, configs[ordinal]) : null;
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, configs[ordinal]);
+        }
+        if (buffer.remaining() != bitmap.getRowBytes() * height) {
+            // written with another layout
+            if (pool == null || !pool.put(bitmap)) {
+                bitmap.recycle();
+            }
+            return null;
+        }
+        bitmap.copyPixelsFromBuffer(buffer);
+        return bitmap;
+    }
+
+    /**
+     * Gets the metadata of an entry.
+     *
+     * @param key
+     *            the key
+     * @return the metadata, or null if the entry has none
+     */
+    public CacheMetadata getMetadata(String key) {
+        return mCache.getMetadata(key);
+    }
+
+    /**
+     * Write the recency of the entries to storage.
+     */
+    public void flush() {
+        mCache.flush();
+    }
+
+    /**
+     * Write what is pending and release the open files. The cache can still
+     * be used afterwards.
+     */
+    public void close() {
+        mCache.close();
+    }
+
+    /**
+     * Delete all entries.
+     */
+    public void clear() {
+        mCache.clear();
+    }
+
+}
@@ -0,0 +1,942 @@
+package org.qinyu.cache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.qinyu.utils.ByteBufferInputStream;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.common.io.CountingInputStream;
+
+/**
+ * The Class SegmentFileCache.
+ *
+ * A size limited file cache that packs small entries, such as thumbnails, into
+ * a few large segment files instead of one file each, which saves a file, an
+ * open and a directory entry per image. An entry is appended to the current
+ * segment as a record and found through an index of offsets kept in memory.
+ * Entries larger than the pack threshold are stored as files of their own,
+ * like in {@link LimitSizeFileCache}.
+ *
+ * A segment is a log of records, each with either the bytes and metadata of an
+ * entry or new metadata for it; the last record of an entry wins. At startup
+ * the offsets are read back from the record headers, skipping the bytes of the
+ * entries, and a record cut off by a crash is truncated. Whether a record is
+ * still live is decided by the journal of the cache, so removing an entry does
+ * not write to the segments. Replaced and removed entries leave dead space
+ * behind; once at least half of a segment is dead, or the share given to the
+ * constructor, its live records are copied to the current segment on a
+ * background thread and the segment is deleted. The size limit counts the
+ * bytes of the entries only, so the segments can take up to twice as much.
+ * A cache that must stay closer to its limit compacts earlier and limits its
+ * entries to less than its space.
+ *
+ * Packed entries have no file: their location is an uri with the
+ * {@link #SCHEME} scheme, to be read with {@link #open(String)}. With mapped
+ * reads a packed entry is read from a view of its mapped segment, so a few
+ * mappings serve all the small entries.
+ */
+public class SegmentFileCache extends AbstractFileCache {
+
+    /** The scheme of the location of a packed entry. */
+    public static final String SCHEME = "segment";
+
+    /** The default size up to which an entry is packed. */
+    public static final int DEFAULT_PACK_THRESHOLD = 32 * 1024;
+
+    /** The default percentage of dead space at which a segment is compacted. */
+    public static final int DEFAULT_MAX_DEAD_PERCENT = 50;
+
+    /** The size after which a new segment is started. */
+    static final long SEGMENT_SIZE = 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    /** A record with the bytes and the metadata of an entry. */
+    private static final int TYPE_DATA = 1;
+
+    /** A record with new metadata of an entry. */
+    private static final int TYPE_META = 2;
+
+    /** The largest metadata of a record, a larger length means garbage. */
+    private static final int MAX_METADATA = 8 * 1024;
+
+    /** The time the idle compaction thread is kept, in seconds. */
+    private static final int KEEP_ALIVE = 30;
+
+    private static final byte[] NO_METADATA = new byte[0];
+
+    /** The m max size. */
+    private final long mMaxSize;
+
+    /** The size up to which an entry is packed. */
+    private final int mPackThreshold;
+
+    /** The percentage of dead space at which a segment is compacted. */
+    private final int mMaxDeadPercent;
+
+    /** The packed entries by file name, guarded by the lock. */
+    private final HashMap<String, Location> mPacked = new HashMap<String, Location>();
+
+    /** The segments by id, oldest first, guarded by the lock. */
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+
+    /** The segment records are appended to, null until there is one. */
+    private Segment mActive;
+
+    /** The file of the active segment, opened on the first append. */
+    private RandomAccessFile mActiveFile;
+
+    /** Set once the segments are read, compaction waits for it. */
+    private boolean mLoaded;
+
+    /** Bumped by {@link #close()}, which stops a running compaction. */
+    private int mEpoch;
+
+    /** Runs one compaction at a time. */
+    private final ThreadPoolExecutor mCompactor;
+
+    /** A segment file. */
+    private static class Segment {
+
+        final int id;
+
+        final File file;
+
+        /** The length of the records, the file is never longer. */
+        long length;
+
+        /** The length of the records that are still live. */
+        long live;
+
+        /** Set once the segment is queued for compaction. */
+        boolean compacting;
+
+        Segment(int id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+
+    /** Where the bytes and metadata of a packed entry are. */
+    private static class Location {
+
+        final Segment segment;
+
+        /** The offset of the record. */
+        final long offset;
+
+        /** The length of the record. */
+        final int length;
+
+        /** The offset of the bytes of the entry. */
+        final long dataOffset;
+
+        /** The length of the bytes of the entry. */
+        final int dataLength;
+
+        CacheMetadata metadata;
+
+        /** The segment of the metadata record, null if written with the bytes. */
+        Segment metaSegment;
+
+        long metaOffset;
+
+        int metaLength;
+
+        Location(Segment segment, long offset, int length, long dataOffset, int dataLength, CacheMetadata metadata) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+            this.metadata = metadata;
+        }
+    }
+
+    /**
+     * Instantiates a new segment file cache that packs entries up to
+     * {@link #DEFAULT_PACK_THRESHOLD}.
+     *
+     * @param context
+     *            the context
+     * @param storageDevice
+     *            the storage device
+     * @param cacheName
+     *            the cache name
+     * @param maxSize
+     *            the max size of the entries
+     */
+    public SegmentFileCache(Context context, int storageDevice, String cacheName, long maxSize) {
+        this(context, storageDevice, cacheName, maxSize, DEFAULT_PACK_THRESHOLD);
+    }
+
+    /**
+     * Instantiates a new segment file cache.
+     *
+     * @param context
+     *            the context
+     * @param storageDevice
+     *            the storage device
+     * @param cacheName
+     *            the cache name
+     * @param maxSize
+     *            the max size of the entries
+     * @param packThreshold
+     *            the size up to which an entry is packed, larger ones get a
+     *            file of their own
+     */
+    public SegmentFileCache(Context context, int storageDevice, String cacheName, long maxSize, int packThreshold) {
+        this(context, storageDevice, cacheName, maxSize, packThreshold, DEFAULT_MAX_DEAD_PERCENT);
+    }
+
+    /**
+     * Instantiates a new segment file cache.
+     *
+     * @param context
+     *            the context
+     * @param storageDevice
+     *            the storage device
+     * @param cacheName
+     *            the cache name
+     * @param maxSize
+     *            the max size of the entries
+     * @param packThreshold
+     *            the size up to which an entry is packed, larger ones get a
+     *            file of their own
+     * @param maxDeadPercent
+     *            the percentage of dead space, 1 to 99, at which a segment is
+     *            compacted; the segments then take at most 100 / (100 -
+     *            maxDeadPercent) times the bytes of the packed entries, besides
+     *            the segment being written
+     */
+    public SegmentFileCache(Context context, int storageDevice, String cacheName, long maxSize, int packThreshold,
+            int maxDeadPercent) {
+        super(context, storageDevice, cacheName);
+        if (maxDeadPercent < 1 || maxDeadPercent > 99) {
+            throw new IllegalArgumentException("maxDeadPercent:" + maxDeadPercent);
+        }
+        mMaxSize = maxSize;
+        mPackThreshold = packThreshold;
+        mMaxDeadPercent = maxDeadPercent;
+        mCompactor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "SegmentCompactor");
+                    }
+                });
+        mCompactor.allowCoreThreadTimeOut(true);
+        mLock.lock();
+        try {
+            load();
+            free();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.AbstractFileCache#needFree()
+     */
+    @Override
+    protected boolean needFree() {
+        return mSize > mMaxSize;
+    }
+
+    /**
+     * Read the segments into the index. Records of entries that also have a
+     * file are dead. So are records of entries the journal does not know,
+     * unless the index was recovered from the directory: the journal lines of
+     * packed entries were lost then, and their live records are indexed
+     * again, including entries that were deleted before the journal was lost.
+     */
+    private void load() {
+        File[] files = new File(getDirectory()).listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                int id = getSegmentId(files[i].getName());
+                if (id >= 0) {
+                    mSegments.put(id, new Segment(id, files[i]));
+                }
+            }
+        }
+        for (Segment segment : mSegments.values()) {
+            scan(segment);
+        }
+        for (Iterator<Map.Entry<String, Location>> iterator = mPacked.entrySet().iterator(); iterator.hasNext();) {
+            Map.Entry<String, Location> entry = iterator.next();
+            // a file is only left beside a packed record if it was written later
+            if (super.isStored(entry.getKey()) || !isIndexed(entry.getKey()) && !isRecovered()) {
+                iterator.remove();
+                kill(entry.getValue());
+            } else if (!isIndexed(entry.getKey())) {
+                record(entry.getKey(), entry.getValue().dataLength);
+            }
+        }
+        if (!mSegments.isEmpty() && mSegments.lastEntry().getValue().length < SEGMENT_SIZE) {
+            mActive = mSegments.lastEntry().getValue();
+        }
+        mLoaded = true;
+        for (Segment segment : new ArrayList<Segment>(mSegments.values())) {
+            compactIfSparse(segment);
+        }
+    }
+
+    private static int getSegmentId(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Read the record headers of a segment and truncate what follows the last
+     * complete record.
+     */
+    private void scan(Segment segment) {
+        long fileLength = segment.file.length();
+        long end = 0;
+        DataInputStream in = null;
+        try {
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(
+                    segment.file), 8192));
+            in = new DataInputStream(counter);
+            int type;
+            while ((type = in.read()) != -1) {
+                String name = in.readUTF();
+                int metadataLength = in.readInt();
+                if (type != TYPE_DATA && type != TYPE_META || metadataLength < 0 || metadataLength > MAX_METADATA) {
+                    break;
+                }
+                byte[] metadata = new byte[metadataLength];
+                in.readFully(metadata);
+                int dataLength = type == TYPE_DATA ? in.readInt() : 0;
+                long dataOffset = counter.getCount();
+                // skipping does not notice the end of the file
+                if (dataLength < 0 || dataOffset + dataLength > fileLength || in.skipBytes(dataLength) != dataLength) {
+                    break;
+                }
+                apply(segment, type, name, metadataLength > 0 ? CacheMetadata.fromBytes(metadata) : null, end,
+                        (int) (dataOffset - end), dataLength);
+                end = counter.getCount();
+            }
+        } catch (IOException e) {
+            // a record cut off by a crash ends the segment
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        segment.length = end;
+        if (end < fileLength) {
+            Log.w(TAG, "Truncating " + segment.file + " at " + end);
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(segment.file, "rw");
+                raf.setLength(end);
+            } catch (IOException e) {
+                Log.w(TAG, "Can not truncate " + segment.file, e);
+            } finally {
+                if (raf != null) {
+                    try {
+                        raf.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply a record, read or just written, to the index.
+     *
+     * @param headerLength
+     *            the length of the record without the bytes of the entry
+     */
+    private void apply(Segment segment, int type, String name, CacheMetadata metadata, long offset,
+            int headerLength, int dataLength) {
+        int length = headerLength + dataLength;
+        if (type == TYPE_DATA) {
+            Location previous = mPacked.put(name, new Location(segment, offset, length, offset + headerLength,
+                    dataLength, metadata));
+            segment.live += length;
+            if (previous != null) {
+                kill(previous);
+            }
+        } else {
+            Location location = mPacked.get(name);
+            if (location == null) {
+                return;
+            }
+            if (location.metaSegment != null) {
+                location.metaSegment.live -= location.metaLength;
+                compactIfSparse(location.metaSegment);
+            }
+            location.metadata = metadata;
+            location.metaSegment = segment;
+            location.metaOffset = offset;
+            location.metaLength = length;
+            segment.live += length;
+        }
+    }
+
+    /**
+     * Count the records of an entry that is no longer packed as dead.
+     */
+    private void kill(Location location) {
+        location.segment.live -= location.length;
+        compactIfSparse(location.segment);
+        if (location.metaSegment != null) {
+            location.metaSegment.live -= location.metaLength;
+            compactIfSparse(location.metaSegment);
+        }
+    }
+
+    /**
+     * Append a record to the active segment and apply it to the index.
+     *
+     * @param data
+     *            the bytes of the entry, null for a metadata record
+     */
+    private void append(int type, String name, CacheMetadata metadata, byte[] data) throws IOException {
+        byte[] metadataBytes = metadata != null ? metadata.toBytes() : NO_METADATA;
+        if (metadataBytes.length > MAX_METADATA) {
+            metadata = null;
+            metadataBytes = NO_METADATA;
+        }
+        ByteArrayOutputStream header = new ByteArrayOutputStream(64 + metadataBytes.length);
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeByte(type);
+        out.writeUTF(name);
+        out.writeInt(metadataBytes.length);
+        out.write(metadataBytes);
+        if (type == TYPE_DATA) {
+            out.writeInt(data.length);
+        }
+        Segment segment = getActive();
+        long offset = segment.length;
+        try {
+            mActiveFile.seek(offset);
+            mActiveFile.write(header.toByteArray());
+            if (data != null) {
+                mActiveFile.write(data);
+            }
+        } catch (IOException e) {
+            // drop the half-written record
+            try {
+                mActiveFile.setLength(offset);
+            } catch (IOException e1) {
+            }
+            throw e;
+        }
+        int dataLength = data != null ? data.length : 0;
+        segment.length = offset + header.size() + dataLength;
+        apply(segment, type, name, metadata, offset, header.size(), dataLength);
+    }
+
+    /**
+     * Gets the active segment, starting a new one when it is full.
+     */
+    private Segment getActive() throws IOException {
+        if (mActive != null && mActive.length >= SEGMENT_SIZE) {
+            Segment full = mActive;
+            closeActive();
+            compactIfSparse(full);
+        }
+        if (mActive == null) {
+            int id = mSegments.isEmpty() ? 0 : mSegments.lastKey() + 1;
+            mActive = new Segment(id, new File(getDirectory(), SEGMENT_PREFIX + id + SEGMENT_SUFFIX));
+            mSegments.put(id, mActive);
+        }
+        if (mActiveFile == null) {
+            mActiveFile = new RandomAccessFile(mActive.file, "rw");
+        }
+        return mActive;
+    }
+
+    private void closeActive() {
+        if (mActiveFile != null) {
+            try {
+                mActiveFile.close();
+            } catch (IOException e) {
+            }
+            mActiveFile = null;
+        }
+        mActive = null;
+    }
+
+    /**
+     * Queue a segment for compaction once the share of it that is dead
+     * reaches the max dead percentage.
+     */
+    private void compactIfSparse(final Segment segment) {
+        if (!mLoaded || segment == mActive || segment.compacting
+                || segment.live * 100 > segment.length * (100 - mMaxDeadPercent)) {
+            return;
+        }
+        segment.compacting = true;
+        mCompactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact(segment);
+            }
+        });
+    }
+
+    /**
+     * Copy the live records of a segment to the active segment and delete it.
+     * The segment is read without the lock, it is no longer appended to; each
+     * record is checked and copied with the lock held.
+     */
+    private void compact(Segment segment) {
+        long end;
+        int epoch;
+        mLock.lock();
+        try {
+            if (mSegments.get(segment.id) != segment || !segment.compacting) {
+                return;
+            }
+            end = segment.length;
+            epoch = mEpoch;
+        } finally {
+            mLock.unlock();
+        }
+        DataInputStream in = null;
+        try {
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(
+                    segment.file), 8192));
+            in = new DataInputStream(counter);
+            while (counter.getCount() < end) {
+                long offset = counter.getCount();
+                int type = in.read();
+                String name = in.readUTF();
+                in.skipBytes(in.readInt());
+                int dataLength = type == TYPE_DATA ? in.readInt() : 0;
+                long dataOffset = counter.getCount();
+                in.skipBytes(dataLength);
+                mLock.lock();
+                try {
+                    if (mSegments.get(segment.id) != segment || mEpoch != epoch) {
+                        // cleared or closed meanwhile
+                        return;
+                    }
+                    Location location = mPacked.get(name);
+                    if (location != null
+                            && (type == TYPE_DATA && location.segment == segment && location.dataOffset == dataOffset || type == TYPE_META
+                                    && location.metaSegment == segment && location.metaOffset == offset)) {
+                        // rewritten whole, with the current metadata
+                        append(TYPE_DATA, name, location.metadata, read(location));
+                    }
+                } finally {
+                    mLock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can not compact " + segment.file, e);
+            mLock.lock();
+            try {
+                segment.compacting = false;
+            } finally {
+                mLock.unlock();
+            }
+            return;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        mLock.lock();
+        try {
+            if (mSegments.get(segment.id) == segment && mEpoch == epoch) {
+                mSegments.remove(segment.id);
+                segment.file.delete();
+                mMappings.remove(segment.file);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Read the bytes of a packed entry.
+     */
+    private static byte[] read(Location location) throws IOException {
+        byte[] data = new byte[location.dataLength];
+        RandomAccessFile raf = new RandomAccessFile(location.segment.file, "r");
+        try {
+            raf.seek(location.dataOffset);
+            raf.readFully(data);
+        } finally {
+            raf.close();
+        }
+        return data;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.AbstractFileCache#install(java.lang.String,
+     * java.io.File, org.qinyu.cache.CacheMetadata)
+     */
+    @Override
+    protected String install(String fileName, File temp, CacheMetadata metadata) {
+        long length = temp.length();
+        if (length > mPackThreshold) {
+            Location previous = mPacked.remove(fileName);
+            if (previous != null) {
+                kill(previous);
+            }
+            return super.install(fileName, temp, metadata);
+        }
+        byte[] data = new byte[(int) length];
+        try {
+            RandomAccessFile raf = new RandomAccessFile(temp, "r");
+            try {
+                raf.readFully(data);
+            } finally {
+                raf.close();
+            }
+            append(TYPE_DATA, fileName, metadata, data);
+        } catch (IOException e) {
+            Log.w(TAG, "Can not save to segment!", e);
+            return null;
+        } finally {
+            temp.delete();
+        }
+        // the packed entry replaces the file of the entry, if any
+        super.delete(fileName);
+        record(fileName, length);
+        return locate(fileName);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.AbstractFileCache#delete(java.lang.String)
+     */
+    @Override
+    protected void delete(String fileName) {
+        Location location = mPacked.remove(fileName);
+        if (location != null) {
+            kill(location);
+        }
+        super.delete(fileName);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.AbstractFileCache#isStored(java.lang.String)
+     */
+    @Override
+    protected boolean isStored(String fileName) {
+        return mPacked.containsKey(fileName) || super.isStored(fileName);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.AbstractFileCache#locate(java.lang.String)
+     */
+    @Override
+    protected String locate(String fileName) {
+        return mPacked.containsKey(fileName) ? SCHEME + ":" + fileName : super.locate(fileName);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.AbstractFileCache#readMetadata(java.lang.String)
+     */
+    @Override
+    protected CacheMetadata readMetadata(String fileName) {
+        Location location = mPacked.get(fileName);
+        return location != null ? location.metadata : super.readMetadata(fileName);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.AbstractFileCache#writeMetadata(java.lang.String,
+     * org.qinyu.cache.CacheMetadata)
+     */
+    @Override
+    protected boolean writeMetadata(String fileName, CacheMetadata metadata) {
+        if (!mPacked.containsKey(fileName)) {
+            return super.writeMetadata(fileName, metadata);
+        }
+        try {
+            append(TYPE_META, fileName, metadata, null);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Can not save to segment!", e);
+            return false;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.AbstractFileCache#open(java.lang.String)
+     */
+    @Override
+    public InputStream open(String location) throws IOException {
+        if (!location.startsWith(SCHEME + ":")) {
+            return super.open(location);
+        }
+        mLock.lock();
+        try {
+            Location packed = getPacked(location);
+            ByteBuffer mapped = map(packed);
+            if (mapped != null) {
+                return new ByteBufferInputStream(mapped);
+            }
+            // a compaction may delete the segment, the open file stays readable
+            return new SegmentInputStream(new RandomAccessFile(packed.segment.file, "r"), packed.dataOffset,
+                    packed.dataLength);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.AbstractFileCache#getBuffer(java.lang.String)
+     */
+    @Override
+    public ByteBuffer getBuffer(String location) throws IOException {
+        if (!location.startsWith(SCHEME + ":")) {
+            return super.getBuffer(location);
+        }
+        mLock.lock();
+        try {
+            Location packed = getPacked(location);
+            ByteBuffer mapped = map(packed);
+            return mapped != null ? mapped : ByteBuffer.wrap(read(packed));
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private Location getPacked(String location) throws FileNotFoundException {
+        Location packed = mPacked.get(location.substring(SCHEME.length() + 1));
+        if (packed == null) {
+            throw new FileNotFoundException(location);
+        }
+        return packed;
+    }
+
+    /**
+     * Gets a view of a packed entry in its mapped segment.
+     *
+     * @return the view, or null if mapped reads are off or the segment can
+     *         not be mapped
+     */
+    private ByteBuffer map(Location packed) {
+        if (!isMappedReads()) {
+            return null;
+        }
+        try {
+            // records are never truncated once written, the mapping stays
+            // valid; it covers all records so far, later ones map it again
+            ByteBuffer mapped = mMappings.map(packed.segment.file, packed.dataOffset + packed.dataLength,
+                    packed.segment.length);
+            mapped.position((int) packed.dataOffset);
+            mapped.limit((int) (packed.dataOffset + packed.dataLength));
+            return mapped.slice();
+        } catch (IOException e) {
+            Log.w(TAG, "Can not map " + packed.segment.file, e);
+            return null;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.AbstractFileCache#getUnmappedFile(java.lang.String)
+     */
+    @Override
+    public File getUnmappedFile(String location) {
+        return location.startsWith(SCHEME + ":") ? null : super.getUnmappedFile(location);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.AbstractFileCache#owns(java.lang.String)
+     */
+    @Override
+    public boolean owns(String location) {
+        return location.startsWith(SCHEME + ":") || super.owns(location);
+    }
+
+    /**
+     * Also drops the queued compactions, stops the running one after its
+     * current record and closes the file of the active segment. Segments are
+     * compacted again once records in them die.
+     */
+    @Override
+    public void close() {
+        mCompactor.getQueue().clear();
+        mLock.lock();
+        try {
+            mEpoch++;
+            for (Segment segment : mSegments.values()) {
+                segment.compacting = false;
+            }
+            if (mActiveFile != null) {
+                try {
+                    mActiveFile.close();
+                } catch (IOException e) {
+                }
+                // the active segment stays, the next append opens it again
+                mActiveFile = null;
+            }
+            super.close();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.qinyu.cache.AbstractFileCache#clear()
+     */
+    @Override
+    public void clear() {
+        mLock.lock();
+        try {
+            closeActive();
+            super.clear();
+            mPacked.clear();
+            mSegments.clear();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the bytes of a packed entry from its segment. Supports mark and
+     * reset, so the decoder does not need to buffer it.
+     */
+    private static class SegmentInputStream extends InputStream {
+
+        private final RandomAccessFile mFile;
+
+        private final long mEnd;
+
+        private long mPosition;
+
+        private long mMark;
+
+        SegmentInputStream(RandomAccessFile file, long offset, int length) throws IOException {
+            mFile = file;
+            mPosition = offset;
+            mMark = offset;
+            mEnd = offset + length;
+            try {
+                file.seek(offset);
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mPosition >= mEnd) {
+                return -1;
+            }
+            int b = mFile.read();
+            if (b != -1) {
+                mPosition++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            if (mPosition >= mEnd) {
+                return -1;
+            }
+            int n = mFile.read(buffer, offset, (int) Math.min(count, mEnd - mPosition));
+            if (n > 0) {
+                mPosition += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = Math.max(0, Math.min(n, mEnd - mPosition));
+            mPosition += skipped;
+            mFile.seek(mPosition);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) (mEnd - mPosition);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(int readlimit) {
+            mMark = mPosition;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            mPosition = mMark;
+            mFile.seek(mPosition);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+package org.qinyu.imageloader;
+
+import android.os.SystemClock;
+
+/**
+ * A circuit breaker for the requests to one host.
+ *
+ * After {@link #FAILURE_THRESHOLD} failures in a row the circuit opens and
+ * requests fail fast without touching the network. Once the open interval has
+ * passed a single probe request is let through: if it succeeds the circuit
+ * closes, if it fails the circuit opens again for twice as long, up to
+ * {@link #MAX_OPEN_INTERVAL}.
+ */
+class CircuitBreaker {
+
+    /** Requests pass. */
+    static final int STATE_CLOSED = 0;
+
+    /** Requests fail fast. */
+    static final int STATE_OPEN = 1;
+
+    /** One probe request passes, the others fail fast. */
+    static final int STATE_HALF_OPEN = 2;
+
+    /** The number of failures in a row that opens the circuit. */
+    static final int FAILURE_THRESHOLD = 5;
+
+    /** The first open interval in milliseconds. */
+    static final long OPEN_INTERVAL = 10 * 1000;
+
+    /** The longest open interval in milliseconds. */
+    static final long MAX_OPEN_INTERVAL = 5 * 60 * 1000;
+
+    /** The m state. */
+    private int mState = STATE_CLOSED;
+
+    /** The failures in a row. */
+    private int mFailures;
+
+    /** The current open interval. */
+    private long mOpenInterval = OPEN_INTERVAL;
+
+    /**
+     * When the circuit is open, the time a probe may be sent. When half open,
+     * the time another probe may be sent if the first never reported back.
+     */
+    private long mRetryAt;
+
+    /**
+     * Checks if a request may be sent, and if it is the probe, marks it sent.
+     *
+     * @return true, if the request may be sent
+     */
+    synchronized boolean allowRequest() {
+        if (mState == STATE_CLOSED) {
+            return true;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (now < mRetryAt) {
+            return false;
+        }
+        mState = STATE_HALF_OPEN;
+        mRetryAt = now + mOpenInterval;
+        return true;
+    }
+
+    /**
+     * Report that the host answered.
+     */
+    synchronized void onSuccess() {
+        mState = STATE_CLOSED;
+        mFailures = 0;
+        mOpenInterval = OPEN_INTERVAL;
+    }
+
+    /**
+     * Report that the host could not be reached or failed.
+     */
+    synchronized void onFailure() {
+        mFailures++;
+        if (mState == STATE_HALF_OPEN) {
+            mOpenInterval = Math.min(MAX_OPEN_INTERVAL, mOpenInterval * 2);
+        } else if (mFailures < FAILURE_THRESHOLD) {
+            return;
+        }
+        mState = STATE_OPEN;
+        mRetryAt = SystemClock.elapsedRealtime() + mOpenInterval;
+    }
+
+    /**
+     * Gets the state.
+     *
+     * @return one of the STATE_ constants
+     */
+    synchronized int getState() {
+        return mState;
+    }
+
+}
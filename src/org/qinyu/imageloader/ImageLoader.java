@@ -2,7 +2,7 @@ package org.qinyu.imageloader;
 
 import static android.content.ContentResolver.SCHEME_CONTENT;
 import static android.content.ContentResolver.SCHEME_FILE;
-import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+import static android.provider.MediaStore.Images.Thumbnails.cancelThumbnailRequest;
 import static android.provider.MediaStore.Images.Thumbnails.getThumbnail;
 import static java.lang.Long.parseLong;
 
@@ -10,47 +10,67 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
 import org.qinyu.cache.AbstractFileCache;
-import org.qinyu.cache.LimitSizeFileCache;
+import org.qinyu.cache.AbstractFileCache.Editor;
+import org.qinyu.cache.BitmapLruCache;
+import org.qinyu.cache.BitmapPool;
+import org.qinyu.cache.CacheMetadata;
+import org.qinyu.cache.NegativeCache;
+import org.qinyu.cache.RawBitmapCache;
+import org.qinyu.cache.SegmentFileCache;
 import org.qinyu.utils.BitmapHelper;
-import org.qinyu.utils.HttpParamsHelper;
+import org.qinyu.utils.CancellationSignal;
+import org.qinyu.utils.CancellationSignal.OnCancelListener;
+import org.qinyu.utils.PipeInputStream;
+import org.qinyu.utils.PooledHttpClient;
 
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
-import android.graphics.Matrix;
 import android.net.Uri;
 import android.provider.MediaStore.Images.Media;
-import android.support.v4.util.LruCache;
+import android.provider.MediaStore.MediaColumns;
+import android.provider.OpenableColumns;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 
@@ -58,8 +78,8 @@ import com.google.common.util.concurrent.SettableFuture;
  * The Class ImageLoader.
  */
 public class ImageLoader {
-    /** The m future cache. */
-    private Map<String, CallbackDelegator<?>> mDelegatorCache;
+    /** The in-flight tasks by memory cache key. */
+    private Map<String, SharedTask> mSharedTasks;
 
     /**
      * Instantiates a new image loader.
@@ -68,26 +88,213 @@ public class ImageLoader {
      *            the context
      */
     private ImageLoader(Context context) {
-        mDelegatorCache = Collections.synchronizedMap(new HashMap<String, CallbackDelegator<?>>());
+        mSharedTasks = new HashMap<String, SharedTask>();
         mApp = context.getApplicationContext();
-        mFileCache = new LimitSizeFileCache(mApp, 1, "image", 1024 * 1024 * 4);
-        mBitmapCache = new LruCache<String, Bitmap>(100);
+        mFileCache = new SegmentFileCache(mApp, 1, "image", 1024 * 1024 * 4);
+        mFileCache.setMappedReads(true);
+        mBitmapPool = new BitmapPool(BitmapPool.getDefaultMaxBytes(mApp));
+        mBitmapCache = new BitmapLruCache(BitmapLruCache.getDefaultMaxBytes(mApp));
+        mBitmapCache.setBitmapPool(mBitmapPool);
     }
 
     /**
-     * Cancel.
+     * Cancel all requests of a spec.
      * 
      * @param spec
      *            the spec
      */
     public void cancel(ImageSpec spec) {
         if (spec != null) {
-            CallbackDelegator<?> remove = mDelegatorCache.remove(spec.getCacheFileName());
+            SharedTask remove = null;
+            List<CallbackDelegator<?>> delegators = null;
+            synchronized (mSharedTasks) {
+                remove = mSharedTasks.remove(spec.getMemCacheKey());
+                if (remove != null) {
+                    delegators = remove.finish();
+                }
+            }
             if (remove != null) {
                 Log.d(TAG, " found and cancel:" + remove.hashCode() + ":" + spec);
-                remove.f.cancel(false);
                 remove.cancel();
+                for (int i = 0; i < delegators.size(); i++) {
+                    delegators.get(i).cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancel the request of a spec made with the given token. The shared
+     * loading task is only cancelled when no other request is waiting for it.
+     * 
+     * @param <T>
+     *            the generic type
+     * @param spec
+     *            the spec
+     * @param token
+     *            the token passed to {@link #submit(ImageSpec, Object, Callback)}
+     */
+    public <T> void cancel(ImageSpec spec, T token) {
+        if (spec != null) {
+            SharedTask shared = null;
+            CallbackDelegator<?> detached = null;
+            boolean last = false;
+            synchronized (mSharedTasks) {
+                shared = mSharedTasks.get(spec.getMemCacheKey());
+                if (shared != null) {
+                    detached = shared.detach(token);
+                    last = detached != null && shared.delegators.isEmpty();
+                    if (last) {
+                        mSharedTasks.remove(shared.key);
+                        shared.finish();
+                    }
+                }
+            }
+            if (detached != null) {
+                Log.d(TAG, " found and cancel:" + shared.hashCode() + ":" + spec + ",last:" + last);
+                if (last) {
+                    shared.cancel();
+                }
+                detached.cancel();
+            }
+        }
+    }
+
+    /**
+     * A loading task shared by all requests of the same memory cache key. The
+     * attached delegators count the requests still waiting for it. All fields
+     * are guarded by the loader's task map.
+     */
+    private static class SharedTask {
+
+        /** The memory cache key. */
+        final String key;
+
+        /** The result, set from the task once it is started. */
+        final SettableFuture<Bitmap> f = SettableFuture.create();
+
+        /** The chain of stage tasks, null until started. */
+        private volatile ListenableFuture<Bitmap> task;
+
+        /** Stops the download or decode in progress. */
+        final CancellationSignal signal;
+
+        /** The priority of the stage tasks, raised by the requests joining. */
+        final TaskPriority priority;
+
+        /** The waiting requests. */
+        final List<CallbackDelegator<?>> delegators = new ArrayList<CallbackDelegator<?>>();
+
+        /** Whether the task no longer accepts requests. */
+        boolean finished;
+
+        /**
+         * Instantiates a new shared task.
+         * 
+         * @param key
+         *            the memory cache key
+         * @param signal
+         *            the signal
+         * @param priority
+         *            the priority
+         */
+        private SharedTask(String key, CancellationSignal signal, TaskPriority priority) {
+            this.key = key;
+            this.signal = signal;
+            this.priority = priority;
+        }
+
+        /**
+         * Start, once the chain of stage tasks is built. The chain is built
+         * after the task is registered, outside the lock of the shared tasks,
+         * so a cancel may come first.
+         * 
+         * @param task
+         *            the chain of stage tasks
+         * @param cache
+         *            the memory cache, to release a result nobody takes
+         */
+        private void start(ListenableFuture<Bitmap> task, final BitmapLruCache cache) {
+            this.task = task;
+            if (f.isCancelled()) {
+                task.cancel(true);
+                return;
+            }
+            Futures.addCallback(task, new FutureCallback<Bitmap>() {
+                @Override
+                public void onSuccess(Bitmap bitmap) {
+                    if (!f.set(bitmap) && bitmap != null) {
+                        cache.release(bitmap);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    if (t instanceof CancellationException) {
+                        f.cancel(false);
+                    } else {
+                        f.setException(t);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Cancel the work of every stage: queued tasks are dropped, and the
+         * running download or decode is aborted.
+         */
+        private void cancel() {
+            signal.cancel();
+            f.cancel(true);
+            ListenableFuture<Bitmap> started = task;
+            if (started != null) {
+                started.cancel(true);
+            }
+        }
+
+        /**
+         * Attach a request.
+         * 
+         * @param delegator
+         *            the delegator
+         * @return true, if attached; false if the task already finished
+         */
+        private boolean attach(CallbackDelegator<?> delegator) {
+            if (finished || f.isCancelled()) {
+                return false;
+            }
+            delegators.add(delegator);
+            return true;
+        }
+
+        /**
+         * Detach the request made with a token.
+         * 
+         * @param token
+         *            the token
+         * @return the detached delegator, or null if none matched
+         */
+        private CallbackDelegator<?> detach(Object token) {
+            for (Iterator<CallbackDelegator<?>> iterator = delegators.iterator(); iterator.hasNext();) {
+                CallbackDelegator<?> next = iterator.next();
+                if (next.token == token || (token != null && token.equals(next.token))) {
+                    iterator.remove();
+                    return next;
+                }
             }
+            return null;
+        }
+
+        /**
+         * Stop accepting requests.
+         * 
+         * @return the requests that were waiting
+         */
+        private List<CallbackDelegator<?>> finish() {
+            finished = true;
+            List<CallbackDelegator<?>> waiting = new ArrayList<CallbackDelegator<?>>(delegators);
+            delegators.clear();
+            return waiting;
         }
     }
 
@@ -111,9 +318,6 @@ public class ImageLoader {
         /** The b. */
         Bitmap b;
 
-        /** The f. */
-        Future<?> f;
-
         /**
          * Instantiates a new callback delegator.
          * 
@@ -123,20 +327,26 @@ public class ImageLoader {
          *            the spec
          * @param callback
          *            the callback
-         * @param f
-         *            the f
          */
-        private CallbackDelegator(T token, ImageSpec spec, Callback<T> callback, Future<?> f) {
+        private CallbackDelegator(T token, ImageSpec spec, Callback<T> callback) {
             this.token = token;
             this.spec = spec;
             this.callback = callback;
-            this.f = f;
         }
 
         /**
-         * Display.
+         * Display. A releasing callback gets a reference of its own, a bitmap
+         * passed to any other callback is never pooled.
+         * 
+         * @param cache
+         *            the memory cache holding the bitmap
          */
-        private void display() {
+        private void display(BitmapLruCache cache) {
+            if (callback instanceof ReleasingCallback) {
+                cache.acquire(b);
+            } else {
+                cache.neverPool(b);
+            }
             callback.onSuccess(token, spec, b);
         }
 
@@ -166,7 +376,9 @@ public class ImageLoader {
     }
 
     /**
-     * Submit.
+     * Submit with a priority, which applies to this request only and leaves
+     * the priority of the spec as it is. A shared loading task runs at the
+     * highest priority of the requests attached to it.
      * 
      * @param <T>
      *            the generic type
@@ -176,57 +388,190 @@ public class ImageLoader {
      *            the token
      * @param callback
      *            the instance
+     * @param priority
+     *            one of the ImageSpec.PRIORITY_ constants
+     * @see #submit(ImageSpec, Object, Callback)
      */
-    public <T> void submit(ImageSpec spec, T token, Callback<T> callback) {
-        final ListenableFuture<Bitmap> task = getTask(spec);
-        if (task != null && !task.isCancelled()) {
-            CallbackDelegator<T> info = new CallbackDelegator<T>(token, spec, callback, task);
-            Runnable action = getDelegateAction(info, task);
-            if (task.isDone()) {
-                action.run();
-            } else {
-                info.start();
-                mDelegatorCache.put(spec.getCacheFileName(), info);
-                getExecutors().execute(action);
+    public <T> void submit(ImageSpec spec, T token, Callback<T> callback, int priority) {
+        CallbackDelegator<T> info = new CallbackDelegator<T>(token, spec, callback);
+        BitmapLruCache cache = mBitmapCache;
+        Bitmap bitmap = cache.acquire(spec);
+        if (bitmap != null) {
+            info.b = bitmap;
+            info.display(cache);
+            cache.release(bitmap);
+            return;
+        }
+
+        // start first, the shared task may complete as soon as it is attached
+        info.start();
+        SharedTask shared = null;
+        boolean created = false;
+        synchronized (mSharedTasks) {
+            shared = mSharedTasks.get(spec.getMemCacheKey());
+            if (shared == null || !shared.attach(info)) {
+                // only registered here, the stage tasks are looked up and
+                // submitted without holding the lock
+                shared = new SharedTask(spec.getMemCacheKey(), new CancellationSignal(), new TaskPriority(priority));
+                shared.attach(info);
+                mSharedTasks.put(shared.key, shared);
+                created = true;
+            }
+        }
+        if (created) {
+            Futures.addCallback(shared.f, getDelegateCallback(shared), mCallbackExecutor);
+            ListenableFuture<Bitmap> task;
+            try {
+                task = getTask(spec, shared.signal, shared.priority);
+            } catch (RuntimeException e) {
+                shared.f.setException(e);
+                return;
+            }
+            shared.start(task, mBitmapCache);
+        } else {
+            Log.d(TAG, "join:" + shared.hashCode() + ":" + spec);
+            if (shared.priority.raise(priority)) {
+                reprioritize(shared.priority);
             }
         }
     }
 
     /**
-     * Gets the delegate action.
+     * Submit. Requests for the same memory cache key share one loading task.
+     * Tasks run by the priority of the spec, newest first.
      * 
      * @param <T>
      *            the generic type
-     * @param info
-     *            the info
-     * @param task
-     *            the task
-     * @return the delegate action
-     */
-    private <T> Runnable getDelegateAction(final CallbackDelegator<T> info, final ListenableFuture<Bitmap> task) {
-        Runnable command = new Runnable() {
+     * @param spec
+     *            the spec
+     * @param token
+     *            the token
+     * @param callback
+     *            the instance
+     */
+    public <T> void submit(ImageSpec spec, T token, Callback<T> callback) {
+        submit(spec, token, callback, spec.getPriority());
+    }
+
+    /**
+     * Move the queued stage tasks of a raised priority ahead. Tasks submitted
+     * later read the raised priority themselves.
+     * 
+     * @param priority
+     *            the priority
+     */
+    private void reprioritize(TaskPriority priority) {
+        List<StageExecutor> stages;
+        synchronized (this) {
+            stages = mStages;
+        }
+        for (int i = 0; stages != null && i < stages.size(); i++) {
+            stages.get(i).reprioritize(priority);
+        }
+    }
+
+    /**
+     * Gets the delegate callback, which is called when a shared task completes
+     * and notifies every request attached to it. No thread waits for the task.
+     * 
+     * @param shared
+     *            the shared task
+     * @return the delegate callback
+     */
+    private FutureCallback<Bitmap> getDelegateCallback(final SharedTask shared) {
+        return new FutureCallback<Bitmap>() {
             @Override
-            public void run() {
-                try {
-                    Bitmap bitmap = task.get();
-                    Log.d(TAG, "display:" + info.spec.toString());
+            public void onSuccess(Bitmap bitmap) {
+                List<CallbackDelegator<?>> delegators = finish(shared);
+                BitmapLruCache cache = mBitmapCache;
+                for (int i = 0; i < delegators.size(); i++) {
+                    CallbackDelegator<?> info = delegators.get(i);
                     if (bitmap != null) {
                         info.b = bitmap;
-                        info.display();
+                        info.display(cache);
                         Log.d(TAG, "display:" + info.spec.toString());
                     } else {
                         info.fail(new Exception("Can not decode bitmap"));
                     }
-                } catch (InterruptedException e) {
-                } catch (CancellationException e) {
-                } catch (ExecutionException e) {
-                    info.fail(e);
-                } finally {
-                    mDelegatorCache.remove(info.spec.getCacheFileName());
+                }
+                if (bitmap != null) {
+                    // the reference of the task, taken when it was cached
+                    cache.release(bitmap);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                List<CallbackDelegator<?>> delegators = finish(shared);
+                if (t instanceof CancellationException) {
+                    // cancelled requests are notified by cancel()
+                    return;
+                }
+                Exception e = t instanceof Exception ? (Exception) t : new ExecutionException(t);
+                for (int i = 0; i < delegators.size(); i++) {
+                    delegators.get(i).fail(e);
                 }
             }
         };
-        return command;
+    }
+
+    /**
+     * Remove a completed shared task.
+     * 
+     * @param shared
+     *            the shared task
+     * @return the requests that were waiting for it
+     */
+    private List<CallbackDelegator<?>> finish(SharedTask shared) {
+        synchronized (mSharedTasks) {
+            if (mSharedTasks.get(shared.key) == shared) {
+                mSharedTasks.remove(shared.key);
+            }
+            return shared.finish();
+        }
+    }
+
+    /**
+     * Gets the http client shared by all fetches, creating a
+     * {@link PooledHttpClient} sized to the network stage if none was set.
+     * 
+     * @return the http client
+     */
+    public synchronized HttpClient getHttpClient() {
+        if (mHttpClient == null) {
+            mHttpClient = new PooledHttpClient(NETWORK_THREADS, NETWORK_THREADS);
+        }
+        return mHttpClient;
+    }
+
+    /**
+     * Sets the http client shared by all fetches, for instance one pointed at
+     * a local server. The client must be thread safe. The previous client is
+     * shut down if it is a {@link PooledHttpClient}.
+     * 
+     * @param client
+     *            the client, or null to use a new {@link PooledHttpClient}
+     */
+    public void setHttpClient(HttpClient client) {
+        HttpClient previous;
+        synchronized (this) {
+            previous = mHttpClient;
+            mHttpClient = client;
+        }
+        if (previous instanceof PooledHttpClient && previous != client) {
+            ((PooledHttpClient) previous).shutdown();
+        }
+    }
+
+    /**
+     * Sets the executor that callbacks are notified on. By default they run
+     * on the thread that completed the task, so a callback must not block.
+     * 
+     * @param executor
+     *            the executor
+     */
+    public void setCallbackExecutor(Executor executor) {
+        mCallbackExecutor = executor != null ? executor : MoreExecutors.sameThreadExecutor();
     }
 
     /** The singleton instance. */
@@ -249,189 +594,1307 @@ public class ImageLoader {
     /** Retry times for download file. */
     private static final int NUM_ATTEMPTS = 3;
 
+    /** The number of failed urls remembered. */
+    private static final int NEGATIVE_CACHE_SIZE = 256;
+
+    /** The default time a url that got a 4xx fails at once. */
+    public static final long DEFAULT_CLIENT_ERROR_TTL = 10 * 60 * 1000;
+
+    /** The default time a url that got a 5xx fails at once. */
+    public static final long DEFAULT_SERVER_ERROR_TTL = 60 * 1000;
+
+    /** The default time a url whose host was unreachable fails at once. */
+    public static final long DEFAULT_NETWORK_ERROR_TTL = 15 * 1000;
+
+    /** The backoff before the first retry, doubled for each further retry. */
+    private static final long RETRY_BASE_DELAY = 1000;
+
+    /** The longest backoff between two attempts. */
+    private static final long RETRY_MAX_DELAY = 30 * 1000;
+
     private static final String TAG = null;
 
     /** The m app. */
     private Context mApp;
 
     /** The bitmap cache. */
-    private LruCache<String, Bitmap> mBitmapCache;
+    private volatile BitmapLruCache mBitmapCache;
+
+    /** The pool of reusable bitmaps. */
+    private BitmapPool mBitmapPool;
 
     /** The m file cache. */
     private AbstractFileCache mFileCache;
 
+    /** The resized and rotated images, by memory cache key, null if off. */
+    private volatile AbstractFileCache mVariantCache;
+
+    /** The variant cache once enabled, kept while off so only one instance opens its directory. */
+    private AbstractFileCache mVariantStore;
+
+    /** The m variant format. */
+    private volatile CompressFormat mVariantFormat = CompressFormat.JPEG;
+
+    /** The m variant quality. */
+    private volatile int mVariantQuality = DEFAULT_VARIANT_QUALITY;
+
+    /** The decoded pixels of small images, by memory cache key, null if off. */
+    private volatile RawBitmapCache mRawCache;
+
+    /** The raw cache once enabled, kept while off so only one instance opens its directory. */
+    private RawBitmapCache mRawStore;
+
+    /** The urls that failed recently, by cache file name. */
+    private final NegativeCache mNegativeCache = new NegativeCache(NEGATIVE_CACHE_SIZE);
+
+    /** The m client error ttl. */
+    private volatile long mClientErrorTtl = DEFAULT_CLIENT_ERROR_TTL;
+
+    /** The m server error ttl. */
+    private volatile long mServerErrorTtl = DEFAULT_SERVER_ERROR_TTL;
+
+    /** The m network error ttl. */
+    private volatile long mNetworkErrorTtl = DEFAULT_NETWORK_ERROR_TTL;
+
     /**
-     * Clear bitmap cache.
+     * Write what the disk cache keeps in memory, such as which entries were
+     * used recently, to storage. Call it when the app goes to the background.
      */
-    public void clearMemCache() {
-        mBitmapCache.evictAll();
+    public void flush() {
+        mFileCache.flush();
+        AbstractFileCache variants = mVariantCache;
+        if (variants != null) {
+            variants.flush();
+        }
+        RawBitmapCache raw = mRawCache;
+        if (raw != null) {
+            raw.flush();
+        }
     }
 
     /**
-     * Close.
+     * Keep the pixels of small decoded images uncompressed in a disk cache of
+     * their own, so that the images shown most, such as avatars and icons,
+     * are read back without any decoding. It is looked up before the variant
+     * cache and the original; images larger than a sixteenth of the budget
+     * are not kept.
+     * 
+     * @param maxBytes
+     *            the budget of the cache in bytes; the budget of the first
+     *            call stays in effect when the cache is enabled again
      */
-    public void close() {
-        if (mExecutors != null) {
-            mExecutors.shutdownNow();
-            mExecutors = null;
+    public synchronized void enableRawCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
         }
-        synchronized (mDelegatorCache) {
-            Collection<CallbackDelegator<?>> values = mDelegatorCache.values();
-            for (Iterator<CallbackDelegator<?>> iterator = values.iterator(); iterator.hasNext();) {
-                ((CallbackDelegator<?>) iterator.next()).f.cancel(true);
-            }
-            mDelegatorCache.clear();
+        if (mRawStore == null) {
+            mRawStore = new RawBitmapCache(mApp, "raw", maxBytes);
         }
-        // clearBitmapCache();
+        mRawCache = mRawStore;
     }
 
     /**
-     * Submit cache file task.
-     * 
-     * @param spec
-     *            the spec
-     * @return the listenable future
+     * Stop keeping and looking up raw pixels. Those already kept stay on disk
+     * for when the cache is enabled again.
      */
-    private ListenableFuture<String> getFetchTask(final ImageSpec spec) {
-        return getExecutors().submit(new Callable<String>() {
-            @Override
-            public String call() throws Exception {
-                try {
-                    return fetch(spec);
-                } catch (Exception e) {
-                    throw e;
-                }
-            }
-        });
+    public synchronized void disableRawCache() {
+        if (mRawCache != null) {
+            mRawCache = null;
+            mRawStore.close();
+        }
     }
 
     /**
-     * Submit task.
+     * Keep the images as they are shown, resized and rotated, in a second disk
+     * cache, so that after a restart a thumbnail is read back as it is instead
+     * of decoding and resampling the original again. A variant is written in
+     * the background after the original was decoded for the first time, and
+     * looked up before the original. Only specs with a size are kept.
      * 
-     * @param spec
-     *            the spec
-     * @return the listenable future
+     * @param format
+     *            the format variants are encoded in; images with alpha are
+     *            kept as PNG if the format can not hold it
+     * @param quality
+     *            the quality, 0 to 100, see
+     *            {@link Bitmap#compress(CompressFormat, int, java.io.OutputStream)}
      */
-    private ListenableFuture<Bitmap> getTask(final ImageSpec spec) {
-        Bitmap bitmap = mBitmapCache.get(spec.getCacheFileName());
-        if (bitmap != null) {
-            SettableFuture<Bitmap> create = SettableFuture.<Bitmap> create();
-            create.set(bitmap);
-            return create;
-        } else {
-            return Futures.transform(getFetchTask(spec), new Function<String, Bitmap>() {
-                @Override
-                public Bitmap apply(String input) {
-                    return decode(spec, input);
-                }
-            });
+    public synchronized void enableVariantCache(CompressFormat format, int quality) {
+        if (format == null || quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("format:" + format + ",quality:" + quality);
         }
+        mVariantFormat = format;
+        mVariantQuality = quality;
+        if (mVariantStore == null) {
+            mVariantStore = new SegmentFileCache(mApp, 1, "variant", VARIANT_CACHE_SIZE);
+            mVariantStore.setMappedReads(true);
+        }
+        mVariantCache = mVariantStore;
     }
 
     /**
-     * Find in cache.
-     * 
-     * @param spec
-     *            the spec
-     * @return the bitmap
+     * Stop keeping and looking up variants. Those already kept stay on disk
+     * for when the cache is enabled again.
      */
-    public Bitmap findInCache(ImageSpec spec) {
-        return mBitmapCache.get(spec.getCacheFileName());
+    public synchronized void disableVariantCache() {
+        if (mVariantCache != null) {
+            mVariantCache = null;
+            mVariantStore.close();
+        }
+    }
+
+    /**
+     * Forget the urls that failed recently, so that they are tried again, for
+     * instance when the network comes back.
+     */
+    public void clearNegativeCache() {
+        mNegativeCache.clear();
     }
 
     /**
-     * Download.
+     * Sets how long failed urls fail at once without being tried again. 0
+     * disables remembering that kind of failure.
      * 
-     * @param spec
-     *            the spec
-     * @return the string
+     * @param clientError
+     *            the time for 4xx responses, in milliseconds
+     * @param serverError
+     *            the time for 5xx responses, in milliseconds
+     * @param networkError
+     *            the time for unreachable hosts, in milliseconds
      */
-    private String fetch(ImageSpec spec) {
-        Log.d(TAG, "download:" + spec.toString());
+    public void setNegativeCacheTtl(long clientError, long serverError, long networkError) {
+        mClientErrorTtl = clientError;
+        mServerErrorTtl = serverError;
+        mNetworkErrorTtl = networkError;
+    }
 
-        // check file in cache
-        File file = mFileCache.get(spec.getCacheFileName());
-        if (file != null && file.exists()) {
-            return file.getAbsolutePath();
-        }
+    /**
+     * Clear bitmap cache.
+     */
+    public void clearMemCache() {
+        mBitmapCache.evictAll();
+    }
 
-        // check file is local
-        final String url = spec.getUrl();
-        if (url.startsWith("/") && new File(url).exists()) {
-            return url;
-        } else {
-            String scheme = Uri.parse(url).getScheme();
-            if (SCHEME_FILE.equals(scheme) || SCHEME_CONTENT.equals(scheme)) {
-                return url;
-            }
+    /**
+     * Sets the memory cache budget. Cached bitmaps are kept, most recently
+     * used first, as long as they fit in the new budget.
+     * 
+     * @param maxBytes
+     *            the maximum size of the memory cache in bytes
+     */
+    public synchronized void setMemCacheMaxSize(int maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
         }
+        BitmapLruCache old = mBitmapCache;
+        BitmapLruCache cache = new BitmapLruCache(maxBytes);
+        old.copyTo(cache);
+        mBitmapCache = cache;
+    }
 
-        // download file and save in cache
-        int timesTried = 1;
-        String filePath = null;
-        while (timesTried <= NUM_ATTEMPTS) {
-            try {
-                DefaultHttpClient httpClient = new DefaultHttpClient(HttpParamsHelper.setTimeout(new BasicHttpParams()));
-                HttpResponse response = httpClient.execute(new HttpGet(url));
-                StatusLine statusLine = response.getStatusLine();
-                if (statusLine.getStatusCode() == 200) {
-                    filePath = mFileCache.put(spec.getCacheFileName(), response.getEntity().getContent());
-                    break;
-                } else {
-                    filePath = null;
-                    Log.w(TAG,
-                            "download:error:response:" + statusLine.getStatusCode() + " "
-                                    + statusLine.getReasonPhrase());
-                    break;
-                }
+    /**
+     * Gets the memory cache budget.
+     * 
+     * @return the maximum size of the memory cache in bytes
+     */
+    public int getMemCacheMaxSize() {
+        return mBitmapCache.maxSize();
+    }
 
-            } catch (IOException e) {
-                try {
-                    Thread.sleep(2000);
-                } catch (InterruptedException ie) {
-                    return null;
-                }
-                timesTried++;
-                if (timesTried > NUM_ATTEMPTS) {
-                    break;
-                }
-            }
-        }
-        Log.d(TAG, "download:" + spec.toString() + ";file:" + filePath);
-        return filePath;
+    /**
+     * Gets the bytes currently held by the memory cache.
+     * 
+     * @return the size of the memory cache in bytes
+     */
+    public int getMemCacheSize() {
+        return mBitmapCache.size();
     }
 
     /**
-     * Decode.
+     * Gets the number of bitmaps evicted from the memory cache since its
+     * budget was last set.
      * 
-     * @param spec
-     *            the spec
-     * @param uri
-     *            the uri
-     * @return the bitmap
+     * @return the eviction count
      */
-    private Bitmap decode(ImageSpec spec, String uri) {
+    public int getMemCacheEvictionCount() {
+        return mBitmapCache.evictionCount();
+    }
+
+    /**
+     * Sets the byte budget of the pool that evicted bitmaps are reused from.
+     * 
+     * @param maxBytes
+     *            the maximum size of the pool in bytes
+     */
+    public void setBitmapPoolMaxSize(int maxBytes) {
+        mBitmapPool.setMaxSize(maxBytes);
+    }
+
+    /**
+     * Gets the pool that evicted bitmaps are reused from.
+     * 
+     * @return the bitmap pool
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * Gets the disk cache of the originals, for instance to set its eviction
+     * policy or to read its hit ratios.
+     * 
+     * @return the disk cache
+     */
+    public AbstractFileCache getDiskCache() {
+        return mFileCache;
+    }
+
+    /**
+     * Close.
+     */
+    public void close() {
+        synchronized (this) {
+            if (mStages != null) {
+                for (int i = 0; i < mStages.size(); i++) {
+                    mStages.get(i).shutdownNow();
+                }
+                mStages = null;
+                mRetryTimer.shutdownNow();
+                mRetryTimer = null;
+            }
+        }
+        setHttpClient(null);
+        mFileCache.close();
+        AbstractFileCache variants = mVariantCache;
+        if (variants != null) {
+            variants.close();
+        }
+        RawBitmapCache raw = mRawCache;
+        if (raw != null) {
+            raw.close();
+        }
+        synchronized (mSharedTasks) {
+            Collection<SharedTask> values = mSharedTasks.values();
+            for (Iterator<SharedTask> iterator = values.iterator(); iterator.hasNext();) {
+                SharedTask next = iterator.next();
+                next.finish();
+                next.cancel();
+            }
+            mSharedTasks.clear();
+        }
+        // clearBitmapCache();
+    }
+
+    /**
+     * Submit cache file task. The disk cache and local files are checked on
+     * the disk stage, and only a miss goes on to the network stage. An image
+     * that failed recently and has no cached copy fails at once.
+     * 
+     * @param spec
+     *            the spec
+     * @param signal
+     *            the cancellation signal
+     * @param priority
+     *            the priority of the stage tasks
+     * @return the listenable future
+     */
+    private ListenableFuture<String> getFetchTask(final ImageSpec spec, final CancellationSignal signal,
+            final TaskPriority priority, final StreamedDecode streamed) {
+        if (mNegativeCache.contains(spec.getCacheFileName()) && !mFileCache.contains(spec.getCacheFileName())) {
+            // failed recently and no copy to fall back on, fail without a stage
+            return Futures.immediateFailedFuture(new IOException("Failed recently:" + spec.getUrl()));
+        }
+        ListenableFuture<String> local = getDiskStage().submitTask(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return findLocal(spec);
+            }
+        }, priority);
+        return Futures.chain(local, new Function<String, ListenableFuture<String>>() {
+            @Override
+            public ListenableFuture<String> apply(String input) {
+                if (input != null) {
+                    return Futures.immediateFuture(input);
+                }
+                return new Download(spec, signal, priority, streamed).start();
+            }
+        });
+    }
+
+    /**
+     * A download with retries. Each attempt runs on the network stage; between
+     * attempts no thread is held, the next attempt is scheduled on the retry
+     * timer after an exponential backoff with jitter. Requests to a host whose
+     * circuit is open fail at once. If every attempt fails, a stale copy in
+     * the disk cache is used if there is one.
+     */
+    private final class Download implements Runnable {
+
+        /** The spec. */
+        private final ImageSpec spec;
+
+        /** The signal. */
+        private final CancellationSignal signal;
+
+        /** The priority of the attempts. */
+        private final TaskPriority priority;
+
+        /** The circuit breaker of the host. */
+        private final CircuitBreaker breaker;
+
+        /** The decode fed by the attempt that gets the body, may be null. */
+        private final StreamedDecode streamed;
+
+        /** The result. */
+        private final SettableFuture<String> result = SettableFuture.create();
+
+        /** The running attempt or the scheduled retry. */
+        private volatile Future<?> pending;
+
+        /** The number of attempts started. */
+        private volatile int attempts;
+
+        /**
+         * Instantiates a new download.
+         * 
+         * @param spec
+         *            the spec
+         * @param signal
+         *            the cancellation signal
+         * @param priority
+         *            the priority of the attempts
+         * @param streamed
+         *            the decode to feed the body to, may be null
+         */
+        private Download(ImageSpec spec, CancellationSignal signal, TaskPriority priority, StreamedDecode streamed) {
+            this.spec = spec;
+            this.signal = signal;
+            this.priority = priority;
+            this.streamed = streamed;
+            this.breaker = getCircuitBreaker(spec.getUrl());
+            result.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    Future<?> f = pending;
+                    if (result.isCancelled() && f != null) {
+                        f.cancel(true);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        /**
+         * Start the first attempt.
+         * 
+         * @return the path of the downloaded file
+         */
+        private ListenableFuture<String> start() {
+            if (mNegativeCache.contains(spec.getCacheFileName())) {
+                giveUp(new IOException("Failed recently:" + spec.getUrl()));
+            } else {
+                run();
+            }
+            return result;
+        }
+
+        /**
+         * Start the next attempt.
+         */
+        @Override
+        public void run() {
+            if (result.isDone()) {
+                return;
+            } else if (signal.isCanceled()) {
+                result.cancel(false);
+                return;
+            } else if (!breaker.allowRequest()) {
+                // not negatively cached, the breaker tells when to try again
+                giveUp(new IOException("Circuit open:" + spec.getUrl()));
+                return;
+            }
+            attempts++;
+            ListenableFuture<String> attempt;
+            try {
+                attempt = getNetworkStage().submitTask(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return fetch(spec, signal, streamed);
+                    }
+                }, priority);
+            } catch (RejectedExecutionException e) {
+                result.setException(e);
+                return;
+            }
+            pending = attempt;
+            if (result.isCancelled()) {
+                attempt.cancel(true);
+                return;
+            }
+            Futures.addCallback(attempt, new FutureCallback<String>() {
+                @Override
+                public void onSuccess(String path) {
+                    breaker.onSuccess();
+                    result.set(path);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    if (signal.isCanceled() || t instanceof CancellationException) {
+                        result.cancel(false);
+                    } else if (!(t instanceof IOException)) {
+                        result.setException(t);
+                    } else {
+                        breaker.onFailure();
+                        if (attempts < NUM_ATTEMPTS) {
+                            retry();
+                        } else {
+                            boolean serverError = t instanceof HttpResponseException
+                                    && ((HttpResponseException) t).getStatusCode() >= 500;
+                            mNegativeCache.put(spec.getCacheFileName(), serverError ? mServerErrorTtl
+                                    : mNetworkErrorTtl);
+                            giveUp(t);
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Schedule the next attempt.
+         */
+        private void retry() {
+            long backoff = Math.min(RETRY_MAX_DELAY, RETRY_BASE_DELAY << (attempts - 1));
+            long delay = backoff / 2 + (long) (Math.random() * (backoff / 2));
+            Log.d(TAG, "download:retry:" + spec.toString() + " in " + delay + "ms");
+            try {
+                pending = getRetryTimer().schedule(this, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                result.setException(e);
+                return;
+            }
+            if (result.isCancelled()) {
+                pending.cancel(false);
+            }
+        }
+
+        /**
+         * Fail, unless there is a stale copy to fall back on.
+         * 
+         * @param t
+         *            the last failure
+         */
+        private void giveUp(Throwable t) {
+            String location = mFileCache.peekLocation(spec.getCacheFileName());
+            if (location != null) {
+                result.set(location);
+            } else {
+                result.setException(t);
+            }
+        }
+    }
+
+    /**
+     * Gets the circuit breaker of the host of an url.
+     * 
+     * @param url
+     *            the url
+     * @return the circuit breaker
+     */
+    private CircuitBreaker getCircuitBreaker(String url) {
+        String host = Uri.parse(url).getHost();
+        if (host == null) {
+            host = "";
+        }
+        CircuitBreaker breaker = mCircuitBreakers.get(host);
+        if (breaker == null) {
+            CircuitBreaker created = new CircuitBreaker();
+            breaker = mCircuitBreakers.putIfAbsent(host, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * Submit task.
+     * 
+     * @param spec
+     *            the spec
+     * @param signal
+     *            the cancellation signal
+     * @param priority
+     *            the priority of the stage tasks
+     * @return the listenable future
+     */
+    private ListenableFuture<Bitmap> getTask(final ImageSpec spec, final CancellationSignal signal,
+            final TaskPriority priority) {
+        // each bitmap returned holds a reference, released once it is handed out
+        Bitmap bitmap = mBitmapCache.acquire(spec);
+        final Bitmap covering = bitmap == null ? mBitmapCache.acquireCovering(spec) : null;
+        if (bitmap != null) {
+            SettableFuture<Bitmap> create = SettableFuture.<Bitmap> create();
+            create.set(bitmap);
+            return create;
+        } else if (covering != null) {
+            return getDecodeStage().submitTask(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() throws Exception {
+                    return downscale(spec, covering);
+                }
+            }, priority);
+        } else if (mRawCache != null) {
+            return getRawTask(mRawCache, spec, signal, priority);
+        } else {
+            return getDecodedTask(spec, signal, priority);
+        }
+    }
+
+    /**
+     * Load the raw pixels of the spec, or decode it if there are none.
+     * 
+     * @param raw
+     *            the raw cache
+     * @param spec
+     *            the spec
+     * @param signal
+     *            the cancellation signal
+     * @param priority
+     *            the priority of the stage tasks
+     * @return the listenable future
+     */
+    private ListenableFuture<Bitmap> getRawTask(final RawBitmapCache raw, final ImageSpec spec,
+            final CancellationSignal signal, final TaskPriority priority) {
+        ListenableFuture<Bitmap> found = getDiskStage().submitTask(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() throws Exception {
+                CacheMetadata kept = raw.getMetadata(spec.getMemCacheKey());
+                if (kept == null || !isCurrent(kept, spec)) {
+                    return null;
+                }
+                Bitmap bitmap = raw.get(spec.getMemCacheKey(), mBitmapPool);
+                if (bitmap != null) {
+                    cache(spec, bitmap);
+                }
+                return bitmap;
+            }
+        }, priority);
+        return Futures.chain(found, new Function<Bitmap, ListenableFuture<Bitmap>>() {
+            @Override
+            public ListenableFuture<Bitmap> apply(Bitmap bitmap) {
+                return bitmap != null ? Futures.immediateFuture(bitmap) : getDecodedTask(spec, signal, priority);
+            }
+        });
+    }
+
+    /**
+     * Decode the spec, from its kept variant if there is one.
+     * 
+     * @param spec
+     *            the spec
+     * @param signal
+     *            the cancellation signal
+     * @param priority
+     *            the priority of the stage tasks
+     * @return the listenable future
+     */
+    private ListenableFuture<Bitmap> getDecodedTask(ImageSpec spec, CancellationSignal signal, TaskPriority priority) {
+        AbstractFileCache variants = mVariantCache;
+        return variants != null ? getVariantTask(variants, spec, signal, priority)
+                : getOriginalTask(spec, signal, priority);
+    }
+
+    /**
+     * Load a kept variant of the spec, or the original if there is none.
+     * 
+     * @param variants
+     *            the variant cache
+     * @param spec
+     *            the spec
+     * @param signal
+     *            the cancellation signal
+     * @param priority
+     *            the priority of the stage tasks
+     * @return the listenable future
+     */
+    private ListenableFuture<Bitmap> getVariantTask(final AbstractFileCache variants, final ImageSpec spec,
+            final CancellationSignal signal, final TaskPriority priority) {
+        ListenableFuture<String> found = getDiskStage().submitTask(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return findVariant(variants, spec);
+            }
+        }, priority);
+        return Futures.chain(found, new Function<String, ListenableFuture<Bitmap>>() {
+            @Override
+            public ListenableFuture<Bitmap> apply(final String input) {
+                if (input == null) {
+                    return getOriginalTask(spec, signal, priority);
+                }
+                ListenableFuture<Bitmap> decoded = getDecodeStage().submitTask(new Callable<Bitmap>() {
+                    @Override
+                    public Bitmap call() throws Exception {
+                        Bitmap bitmap = decodeFromCache(variants, spec, input, signal);
+                        if (bitmap != null) {
+                            cache(spec, bitmap);
+                            copyLater(spec, bitmap);
+                        }
+                        return bitmap;
+                    }
+                }, priority);
+                return Futures.chain(decoded, new Function<Bitmap, ListenableFuture<Bitmap>>() {
+                    @Override
+                    public ListenableFuture<Bitmap> apply(Bitmap bitmap) {
+                        // unreadable, fall back on the original
+                        return bitmap != null ? Futures.immediateFuture(bitmap) : getOriginalTask(spec, signal, priority);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Fetch and decode the original of the spec.
+     * 
+     * @param spec
+     *            the spec
+     * @param signal
+     *            the cancellation signal
+     * @param priority
+     *            the priority of the stage tasks
+     * @return the listenable future
+     */
+    private ListenableFuture<Bitmap> getOriginalTask(final ImageSpec spec, final CancellationSignal signal,
+            final TaskPriority priority) {
+        final StreamedDecode streamed = new StreamedDecode(spec, signal, priority);
+        return Futures.chain(getFetchTask(spec, signal, priority, streamed),
+                new Function<String, ListenableFuture<Bitmap>>() {
+                    @Override
+                    public ListenableFuture<Bitmap> apply(final String input) {
+                        if (input == null) {
+                            return Futures.immediateFuture(null);
+                        }
+                        ListenableFuture<Bitmap> early = streamed.get();
+                        if (early == null) {
+                            return getDecodeTask(spec, input, signal, priority);
+                        }
+                        return Futures.chain(early, new Function<Bitmap, ListenableFuture<Bitmap>>() {
+                            @Override
+                            public ListenableFuture<Bitmap> apply(Bitmap bitmap) {
+                                // decoded from the pipe, or else from the file
+                                return bitmap != null ? Futures.immediateFuture(bitmap) : getDecodeTask(spec,
+                                        input, signal, priority);
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Gets the task that decodes an image found or downloaded.
+     * 
+     * @param spec
+     *            the spec
+     * @param location
+     *            the path or uri of the image
+     * @param signal
+     *            the cancellation signal
+     * @param priority
+     *            the priority of the stage task
+     * @return the listenable future
+     */
+    private ListenableFuture<Bitmap> getDecodeTask(final ImageSpec spec, final String location,
+            final CancellationSignal signal, TaskPriority priority) {
+        return getDecodeStage().submitTask(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() throws Exception {
+                return decode(spec, location, signal);
+            }
+        }, priority);
+    }
+
+    /**
+     * The decode of a download while it is received. The attempt that gets
+     * the whole body writes it to the disk cache and to a pipe, and a task on
+     * the decode stage decodes from the pipe, bounds and all from the bytes as
+     * they come, so the image is not read back from storage. The network
+     * thread never waits for the decoder: if the decoder falls a pipe's length
+     * behind, the pipe breaks and the file is decoded once it is written, as
+     * it is when the decode fails. A decode thread waits on the network while
+     * it streams, so at most half of them, or the only one, stream at a time.
+     */
+    private final class StreamedDecode {
+
+        /** The spec. */
+        private final ImageSpec spec;
+
+        /** The signal. */
+        private final CancellationSignal signal;
+
+        /** The priority of the decode. */
+        private final TaskPriority priority;
+
+        /** The decode of the last attempt that got a body, null if none. */
+        private volatile ListenableFuture<Bitmap> decode;
+
+        /**
+         * Instantiates a new streamed decode.
+         * 
+         * @param spec
+         *            the spec
+         * @param signal
+         *            the cancellation signal
+         * @param priority
+         *            the priority of the decode
+         */
+        private StreamedDecode(ImageSpec spec, CancellationSignal signal, TaskPriority priority) {
+            this.spec = spec;
+            this.signal = signal;
+            this.priority = priority;
+        }
+
+        /**
+         * Start decoding the body of an attempt on the decode stage.
+         * 
+         * @return the pipe to write the body to, or null if it is not decoded
+         *         while it is received
+         */
+        private PipeInputStream start() {
+            if (mStreamingDecodes.incrementAndGet() > MAX_STREAMING_DECODES) {
+                mStreamingDecodes.decrementAndGet();
+                return null;
+            }
+            final PipeInputStream pipe = new PipeInputStream(PIPE_SIZE);
+            ListenableFuture<Bitmap> started;
+            try {
+                started = getDecodeStage().submitTask(new Callable<Bitmap>() {
+                    @Override
+                    public Bitmap call() throws Exception {
+                        try {
+                            Bitmap bitmap = BitmapHelper.decodeStream(pipe, spec.width, spec.height, mBitmapPool,
+                                    signal);
+                            return bitmap != null ? transformAndCache(spec, bitmap, spec.orientation) : null;
+                        } catch (RuntimeException e) {
+                            Log.w(TAG, "decode:stream:" + spec, e);
+                            return null;
+                        } finally {
+                            pipe.close();
+                        }
+                    }
+                }, priority);
+            } catch (RejectedExecutionException e) {
+                mStreamingDecodes.decrementAndGet();
+                return null;
+            }
+            // also when it is dropped from the queue without running
+            started.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    mStreamingDecodes.decrementAndGet();
+                }
+            }, MoreExecutors.sameThreadExecutor());
+            decode = started;
+            return pipe;
+        }
+
+        /**
+         * Gets the decode of the last attempt that got a body.
+         * 
+         * @return the decode, giving null if the file must be decoded; or null
+         *         if none was started
+         */
+        private ListenableFuture<Bitmap> get() {
+            return decode;
+        }
+    }
+
+    /**
+     * Find the kept variant of a spec. A variant of a downloaded image is only
+     * used while the original it was made from is fresh and not replaced, a
+     * variant of a local image while the file is unchanged.
+     * 
+     * @param variants
+     *            the variant cache
+     * @param spec
+     *            the spec
+     * @return the location, or null if the original must be decoded
+     */
+    private String findVariant(AbstractFileCache variants, ImageSpec spec) {
+        String location = variants.getLocation(spec.getMemCacheKey());
+        if (location == null) {
+            return null;
+        }
+        CacheMetadata kept = variants.getMetadata(spec.getMemCacheKey());
+        return kept != null && isCurrent(kept, spec) ? location : null;
+    }
+
+    /**
+     * Checks if an image kept in a derived cache is still current. For a local
+     * image the file still has the length and modification time it had, which
+     * costs a stat or a query on every lookup. For a download the metadata of
+     * the original it was made from is fresh, and the original in the disk
+     * cache, if still there, is the same version.
+     * 
+     * @param kept
+     *            the metadata of the original, kept with the image
+     * @param spec
+     *            the spec
+     * @return true, if current
+     */
+    private boolean isCurrent(CacheMetadata kept, ImageSpec spec) {
+        String url = spec.getUrl();
+        if (isLocal(url)) {
+            CacheMetadata source = describeLocal(url);
+            return source != null && source.hasSameSource(kept);
+        }
+        if (!kept.isFresh(System.currentTimeMillis())) {
+            return false;
+        }
+        CacheMetadata original = mFileCache.getMetadata(spec.getCacheFileName());
+        return original == null || original.hasSameValidator(kept);
+    }
+
+    /**
+     * Describe the version of the image a derived image is made from, to be
+     * kept with it: the metadata of the download, or the length and
+     * modification time of a local file.
+     * 
+     * @param spec
+     *            the spec
+     * @return the metadata, or null if the version can not be told and the
+     *         derived image should not be kept
+     */
+    private CacheMetadata describeSource(ImageSpec spec) {
+        String url = spec.getUrl();
+        if (isLocal(url)) {
+            return describeLocal(url);
+        }
+        return mFileCache.getMetadata(spec.getCacheFileName());
+    }
+
+    /**
+     * Describe the version of a local image.
+     * 
+     * @param url
+     *            the path, file uri or content uri
+     * @return the metadata, or null if neither the length nor the
+     *         modification time can be read
+     */
+    private CacheMetadata describeLocal(String url) {
+        Uri uri = Uri.parse(url);
+        if (url.startsWith("/") || SCHEME_FILE.equals(uri.getScheme())) {
+            File file = new File(url.startsWith("/") ? url : uri.getPath());
+            return file.isFile() ? CacheMetadata.forSource(file.length(), file.lastModified()) : null;
+        }
+        Cursor c;
+        try {
+            c = mApp.getContentResolver().query(uri, null, null, null, null);
+        } catch (RuntimeException e) {
+            // no provider, or no permission
+            return null;
+        }
+        CacheMetadata source = null;
+        if (c != null) {
+            if (c.moveToFirst()) {
+                int size = c.getColumnIndex(OpenableColumns.SIZE);
+                int modified = c.getColumnIndex(MediaColumns.DATE_MODIFIED);
+                if (size >= 0 || modified >= 0) {
+                    source = CacheMetadata.forSource(size >= 0 ? c.getLong(size) : -1,
+                            modified >= 0 ? c.getLong(modified) : 0);
+                }
+            }
+            c.close();
+        }
+        return source != null && source.hasSource() ? source : null;
+    }
+
+    /**
+     * Checks if a url names an image on the device.
+     * 
+     * @param url
+     *            the url
+     * @return true, if a path, file uri or content uri
+     */
+    private static boolean isLocal(String url) {
+        if (url.startsWith("/")) {
+            return true;
+        }
+        String scheme = Uri.parse(url).getScheme();
+        return SCHEME_FILE.equals(scheme) || SCHEME_CONTENT.equals(scheme);
+    }
+
+    /**
+     * Find in cache.
+     * 
+     * @param spec
+     *            the spec
+     * @return the bitmap
+     */
+    public Bitmap findInCache(ImageSpec spec) {
+        BitmapLruCache cache = mBitmapCache;
+        Bitmap bitmap = cache.acquire(spec);
+        if (bitmap != null) {
+            // the caller does not release it
+            cache.neverPool(bitmap);
+            cache.release(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Find in cache, and hold the bitmap until it is released with
+     * {@link #releaseBitmap(Bitmap)}.
+     * 
+     * @param spec
+     *            the spec
+     * @return the bitmap
+     */
+    Bitmap acquireFromCache(ImageSpec spec) {
+        return mBitmapCache.acquire(spec);
+    }
+
+    /**
+     * Release a bitmap passed to a {@link ReleasingCallback}, once it is not
+     * drawn any more. A bitmap that left the memory cache is pooled on its
+     * last release.
+     * 
+     * @param bitmap
+     *            the bitmap
+     */
+    public void releaseBitmap(Bitmap bitmap) {
+        mBitmapCache.release(bitmap);
+    }
+
+    /**
+     * Put a bitmap in the memory cache, with the reference of the task that
+     * returns it.
+     * 
+     * @param spec
+     *            the spec
+     * @param bitmap
+     *            the bitmap
+     */
+    private void cache(ImageSpec spec, Bitmap bitmap) {
+        mBitmapCache.acquire(bitmap);
+        mBitmapCache.put(spec, bitmap);
+    }
+
+    /**
+     * Serve a spec from a larger cached variant of the same image.
+     * 
+     * @param spec
+     *            the spec
+     * @param covering
+     *            the larger variant, held until it is downscaled
+     * @return the bitmap
+     */
+    private Bitmap downscale(ImageSpec spec, Bitmap covering) {
+        try {
+            Bitmap bitmap = BitmapHelper.downscale(covering, spec.width, spec.height, mBitmapPool);
+            if (bitmap == covering) {
+                // cached under two keys, evicting one must not pool it
+                mBitmapCache.neverPool(bitmap);
+            }
+            cache(spec, bitmap);
+            Log.d(TAG, "downscale:" + spec.toString() + ",thumb:" + bitmap.toString());
+            return bitmap;
+        } finally {
+            mBitmapCache.release(covering);
+        }
+    }
+
+    /**
+     * Find the image in the disk cache or on the device.
+     * 
+     * @param spec
+     *            the spec
+     * @return the path or uri, or null if the image must be downloaded
+     */
+    private String findLocal(ImageSpec spec) {
+        // check file in cache
+        String location = mFileCache.getLocation(spec.getCacheFileName());
+        if (location != null) {
+            CacheMetadata metadata = mFileCache.getMetadata(spec.getCacheFileName());
+            if (metadata == null || metadata.isFresh(System.currentTimeMillis())) {
+                return location;
+            }
+            // stale, revalidated by fetch
+            return null;
+        }
+
+        // check file is local
+        final String url = spec.getUrl();
+        if (url.startsWith("/") && new File(url).exists()) {
+            return url;
+        } else {
+            String scheme = Uri.parse(url).getScheme();
+            if (SCHEME_FILE.equals(scheme) || SCHEME_CONTENT.equals(scheme)) {
+                return url;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Download, in one attempt. Cancelling the signal aborts the request and
+     * the write to the cache. A stale cache entry is revalidated with a
+     * conditional request, and a 304 refreshes it. A download that breaks off
+     * is kept as a partial entry, and the next attempt asks only for the rest
+     * with a Range request; if the server sends the whole image instead, it
+     * starts over.
+     * 
+     * @param spec
+     *            the spec
+     * @param signal
+     *            the cancellation signal
+     * @return the string, or null if the server has no such image
+     * @throws IOException
+     *             if the server could not be reached or failed, the attempt
+     *             may be retried
+     */
+    private String fetch(ImageSpec spec, CancellationSignal signal, StreamedDecode streamed) throws IOException {
+        Log.d(TAG, "download:" + spec.toString());
+        final String url = spec.getUrl();
+        final String key = spec.getCacheFileName();
+        CacheMetadata stale = mFileCache.contains(key) ? mFileCache.getMetadata(key) : null;
+        if (stale != null && !stale.hasValidator()) {
+            stale = null;
+        }
+
+        final HttpGet request = new HttpGet(url);
+        // the editor is only opened once a body is coming
+        CacheMetadata partial = mFileCache.getPartialMetadata(key);
+        final long offset = partial != null ? mFileCache.getPartialLength(key) : 0;
+        if (offset > 0 && partial.hasValidator()) {
+            request.addHeader("Range", "bytes=" + offset + "-");
+            request.addHeader("If-Range", partial.getETag() != null ? partial.getETag() : partial.getLastModified());
+            stale = null;
+        } else {
+            partial = null;
+            if (stale != null) {
+                if (stale.getETag() != null) {
+                    request.addHeader("If-None-Match", stale.getETag());
+                }
+                if (stale.getLastModified() != null) {
+                    request.addHeader("If-Modified-Since", stale.getLastModified());
+                }
+            }
+        }
+        signal.setOnCancelListener(new OnCancelListener() {
+            @Override
+            public void onCancel() {
+                request.abort();
+            }
+        });
+        String filePath = null;
+        Editor editor = null;
+        HttpEntity entity = null;
+        // the metadata of the body being written, set once there is one
+        CacheMetadata metadata = null;
+        boolean done = false;
+        PipeInputStream pipe = null;
+        try {
+            HttpResponse response = getHttpClient().execute(request);
+            entity = response.getEntity();
+            StatusLine statusLine = response.getStatusLine();
+            long now = System.currentTimeMillis();
+            if (statusLine.getStatusCode() == 206 && partial != null) {
+                if (getRangeStart(response) != offset) {
+                    throw new IOException("Unexpected range:" + getHeader(response, "Content-Range"));
+                }
+                editor = mFileCache.edit(key);
+                if (editor.getResumeOffset() != offset) {
+                    // taken over or replaced since it was looked at, keep what
+                    // the editor found for the next attempt
+                    metadata = editor.getResumeMetadata();
+                    throw new IOException("Partial entry changed:" + key);
+                }
+                metadata = partial.refresh(getHeader(response, "ETag"), getHeader(response, "Last-Modified"),
+                        CacheMetadata.parseMaxAge(getHeader(response, "Cache-Control")), now);
+                Log.d(TAG, "download:resume:" + spec.toString() + " at " + offset);
+                copy(entity.getContent(), editor.getOutputStream(), null, signal);
+                done = true;
+                filePath = editor.commit(metadata);
+            } else if (statusLine.getStatusCode() == 200) {
+                // the whole image, the partial entry if any is out of date
+                editor = mFileCache.edit(key);
+                editor.restart();
+                metadata = new CacheMetadata(getHeader(response, "ETag"), getHeader(response, "Last-Modified"),
+                        CacheMetadata.parseMaxAge(getHeader(response, "Cache-Control")), now);
+                // decoded on the decode stage as it is received
+                pipe = streamed != null ? streamed.start() : null;
+                copy(entity.getContent(), editor.getOutputStream(), pipe, signal);
+                done = true;
+                if (pipe != null) {
+                    pipe.finish();
+                }
+                filePath = editor.commit(metadata);
+            } else if (statusLine.getStatusCode() == 304 && stale != null) {
+                mFileCache.putMetadata(key, stale.refresh(getHeader(response, "ETag"),
+                        getHeader(response, "Last-Modified"),
+                        CacheMetadata.parseMaxAge(getHeader(response, "Cache-Control")), now));
+                filePath = mFileCache.peekLocation(key);
+            } else if (statusLine.getStatusCode() >= 500) {
+                // the partial entry, if any, stays for the retry
+                throw new HttpResponseException(statusLine.getStatusCode(), statusLine.getReasonPhrase());
+            } else {
+                if (statusLine.getStatusCode() >= 400) {
+                    mNegativeCache.put(key, mClientErrorTtl);
+                }
+                Log.w(TAG,
+                        "download:error:response:" + statusLine.getStatusCode() + " "
+                                + statusLine.getReasonPhrase());
+            }
+        } finally {
+            signal.setOnCancelListener(null);
+            if (pipe != null && !done) {
+                pipe.fail();
+            }
+            release(request, entity);
+            if (editor != null && !done) {
+                // a cancelled download is not resumed, only one that broke off
+                if (metadata != null && metadata.hasValidator() && !signal.isCanceled()) {
+                    editor.keepPartial(metadata);
+                } else {
+                    editor.abort();
+                }
+            }
+        }
+        Log.d(TAG, "download:" + spec.toString() + ";file:" + filePath);
+        return filePath;
+    }
+
+    /**
+     * Copy a stream to the end, checking the signal between chunks.
+     * 
+     * @param in
+     *            the input stream
+     * @param out
+     *            the output stream, or null to only read
+     * @param pipe
+     *            the pipe to also feed, may be null; it is not waited for
+     * @param signal
+     *            the cancellation signal
+     * @throws IOException
+     *             if the copy failed or was cancelled
+     */
+    private static void copy(InputStream in, OutputStream out, PipeInputStream pipe, CancellationSignal signal)
+            throws IOException {
+        byte[] buf = new byte[8192];
+        int count;
+        while ((count = in.read(buf)) > 0) {
+            if (out != null) {
+                out.write(buf, 0, count);
+            }
+            if (pipe != null && !pipe.offer(buf, 0, count)) {
+                // broken or closed, the file is decoded instead
+                pipe = null;
+            }
+            if (signal.isCanceled()) {
+                throw new InterruptedIOException("Canceled");
+            }
+        }
+    }
+
+    /**
+     * Gets the first byte position of a Content-Range header.
+     * 
+     * @param response
+     *            the response
+     * @return the first byte position, or -1 if there is no valid header
+     */
+    private static long getRangeStart(HttpResponse response) {
+        String range = getHeader(response, "Content-Range");
+        if (range == null || !range.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = range.indexOf('-', 6);
+        try {
+            return dash > 0 ? Long.parseLong(range.substring(6, dash).trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Gets the value of the first header with a name.
+     * 
+     * @param response
+     *            the response
+     * @param name
+     *            the name
+     * @return the value, or null if there is no such header
+     */
+    private static String getHeader(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
+    /**
+     * Hand the connection of a request back to the pool. The rest of the
+     * entity is read so that the connection can be kept alive, unless the
+     * request was aborted.
+     * 
+     * @param request
+     *            the request
+     * @param entity
+     *            the entity of the response, may be null
+     */
+    private static void release(HttpGet request, HttpEntity entity) {
+        if (entity == null || request.isAborted()) {
+            return;
+        }
+        try {
+            entity.consumeContent();
+        } catch (IOException e) {
+            request.abort();
+        }
+    }
+
+    /**
+     * Decode.
+     * 
+     * @param spec
+     *            the spec
+     * @param uri
+     *            the uri
+     * @param signal
+     *            the cancellation signal
+     * @return the bitmap
+     */
+    private Bitmap decode(ImageSpec spec, String uri, CancellationSignal signal) {
         Log.d(TAG, "decode1:" + spec.toString() + "uri:" + uri);
-        Bitmap bitmap = null;
         if (spec == null || uri == null)
             return null;
+        Bitmap bitmap = null;
         int rotation = spec.orientation;
-        if (uri.startsWith("/")) {
-            bitmap = BitmapHelper.decodeFile(uri, spec.width, spec.height);
+        if (mFileCache.owns(uri)) {
+            bitmap = decodeFromCache(mFileCache, spec, uri, signal);
+        } else if (uri.startsWith("/")) {
+            bitmap = BitmapHelper.decodeFile(uri, spec.width, spec.height, mBitmapPool, signal);
         } else {
             Uri parse = Uri.parse(uri);
             String scheme = parse.getScheme();
             if (SCHEME_FILE.equals(scheme)) {
-                bitmap = BitmapHelper.decodeFile(parse.getPath(), spec.width, spec.height);
+                bitmap = BitmapHelper.decodeFile(parse.getPath(), spec.width, spec.height, mBitmapPool, signal);
             } else if (SCHEME_CONTENT.equals(scheme)) {
-                ContentResolver contentResolver = mApp.getContentResolver();
+                final ContentResolver contentResolver = mApp.getContentResolver();
                 String type = contentResolver.getType(parse);
                 if (!TextUtils.isEmpty(type) && type.startsWith("image/")) {
                     if (USE_FAST_THUMB && spec instanceof LocalThumbSpec) {
-                        bitmap = getThumbnail(contentResolver, parseLong(parse.getLastPathSegment()),
-                                ((LocalThumbSpec) spec).type, null);
+                        final long id = parseLong(parse.getLastPathSegment());
+                        signal.setOnCancelListener(new OnCancelListener() {
+                            @Override
+                            public void onCancel() {
+                                cancelThumbnailRequest(contentResolver, id);
+                            }
+                        });
+                        try {
+                            bitmap = getThumbnail(contentResolver, id, ((LocalThumbSpec) spec).type, null);
+                        } finally {
+                            signal.setOnCancelListener(null);
+                        }
                     } else {
-                        bitmap = decodeFromMediaStore(spec, uri);
+                        bitmap = decodeFromMediaStore(spec, uri, signal);
                     }
                     Cursor query = contentResolver.query(parse, new String[] { Media.ORIENTATION }, null, null, null);
                     if (query != null) {
@@ -445,25 +1908,40 @@ public class ImageLoader {
         }
 
         if (bitmap != null) {
-            int width = bitmap.getWidth();
-            int height = bitmap.getHeight();
-            if (width > 0 && height > 0) {
-                float scale = ((float) spec.width) / width;
+            bitmap = transformAndCache(spec, bitmap, rotation);
+        }
+        Log.d(TAG, "decode2:" + spec.toString() + ",thumb:" + bitmap);
 
-                if (scale < 0.5 || rotation != 0) {
-                    Matrix scaleMatrix = new Matrix();
-                    scaleMatrix.setScale(scale, scale);
-                    scaleMatrix.setRotate(rotation);
-                    bitmap = Bitmap.createBitmap(bitmap, 0, 0, width, height, scaleMatrix, false);
-                }
+        return bitmap;
+    }
+
+    /**
+     * Scale and rotate a decoded bitmap as the spec asks and put the result in
+     * the memory cache.
+     * 
+     * @param spec
+     *            the spec
+     * @param bitmap
+     *            the decoded bitmap
+     * @param rotation
+     *            the rotation
+     * @return the bitmap
+     */
+    private Bitmap transformAndCache(ImageSpec spec, Bitmap bitmap, int rotation) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (width > 0 && height > 0) {
+            float scale = spec.width > 0 ? ((float) spec.width) / width : 1;
+
+            if (scale < 0.5 || rotation != 0) {
+                bitmap = BitmapHelper.transform(bitmap, scale < 0.5 ? scale : 1, rotation, mBitmapPool);
             }
         }
-
         if (bitmap != null) {
-            mBitmapCache.put(spec.getCacheFileName(), bitmap);
+            cache(spec, bitmap);
+            copyLater(spec, bitmap);
+            compressLater(spec, bitmap);
         }
-        Log.d(TAG, "decode2:" + spec.toString() + ",thumb:" + bitmap.toString());
-
         return bitmap;
     }
 
@@ -474,15 +1952,17 @@ public class ImageLoader {
      *            the spec
      * @param uri
      *            the uri
+     * @param signal
+     *            the cancellation signal
      * @return the image media thumb
      */
-    private Bitmap decodeFromMediaStore(final ImageSpec spec, String uri) {
+    private Bitmap decodeFromMediaStore(final ImageSpec spec, String uri, CancellationSignal signal) {
         Bitmap bitmap = null;
         Cursor c = mApp.getContentResolver().query(Uri.parse(uri), null, null, null, null);
         if (c != null) {
             if (c.moveToFirst()) {
                 String filePath = c.getString(c.getColumnIndex(Media.DATA));
-                bitmap = BitmapHelper.decodeFile(filePath, spec.width, spec.height);
+                bitmap = BitmapHelper.decodeFile(filePath, spec.width, spec.height, mBitmapPool, signal);
             }
             c.close();
         }
@@ -490,58 +1970,244 @@ public class ImageLoader {
     }
 
     /**
-     * Compress.
+     * Decode an entry of a disk cache, through a memory mapping if the cache
+     * reads that way. An entry file that is not mapped is decoded from its
+     * path, the stream of a file can not be replayed far enough for the
+     * bounds pass of a large image.
+     * 
+     * @param cache
+     *            the cache
+     * @param spec
+     *            the spec
+     * @param location
+     *            the location of the entry
+     * @param signal
+     *            the cancellation signal
+     * @return the bitmap, or null if the entry is gone
+     */
+    private Bitmap decodeFromCache(AbstractFileCache cache, ImageSpec spec, String location, CancellationSignal signal) {
+        File file = cache.getUnmappedFile(location);
+        if (file != null) {
+            return BitmapHelper.decodeFile(file.getPath(), spec.width, spec.height, mBitmapPool, signal);
+        }
+        InputStream in = null;
+        try {
+            in = cache.open(location);
+            return BitmapHelper.decodeStream(in, spec.width, spec.height, mBitmapPool, signal);
+        } catch (IOException e) {
+            Log.w(TAG, "decode:" + location, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Keep the pixels of a decoded bitmap in the raw cache. They are copied at
+     * once, while the bitmap is known to be intact, and written in the
+     * background.
+     * 
+     * @param spec
+     *            the spec
+     * @param bitmap
+     *            the bitmap, as put in the memory cache
+     */
+    private void copyLater(final ImageSpec spec, Bitmap bitmap) {
+        final RawBitmapCache raw = mRawCache;
+        if (raw == null || spec.width <= 0 || spec.height <= 0) {
+            return;
+        }
+        final byte[] entry = raw.encode(bitmap);
+        if (entry == null) {
+            return;
+        }
+        try {
+            getDiskStage().submitTask(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    CacheMetadata source = describeSource(spec);
+                    if (source != null) {
+                        raw.put(spec.getMemCacheKey(), entry, source);
+                    }
+                    return null;
+                }
+            }, ImageSpec.PRIORITY_PREFETCH);
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Keep a decoded bitmap as the variant of its spec, in the background.
+     * 
+     * @param spec
+     *            the spec
+     * @param bitmap
+     *            the bitmap, as put in the memory cache
+     */
+    private void compressLater(final ImageSpec spec, final Bitmap bitmap) {
+        final AbstractFileCache variants = mVariantCache;
+        if (variants == null || spec.width <= 0 || spec.height <= 0) {
+            return;
+        }
+        try {
+            getDecodeStage().submitTask(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    compress(variants, spec, bitmap);
+                    return null;
+                }
+            }, ImageSpec.PRIORITY_PREFETCH);
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Compress a bitmap into the variant cache. A bitmap that left the memory
+     * cache in the meantime is not worth the space, so it is only kept if it
+     * was cached before and after it was encoded.
      * 
+     * @param variants
+     *            the variant cache
      * @param spec
      *            the spec
      * @param bitmap
      *            the bitmap
      */
-    @SuppressWarnings("unused")
-    private void compress(final ImageSpec spec, Bitmap bitmap) {
-        if (bitmap != null && spec != null) {
-            ByteArrayOutputStream stream = new ByteArrayOutputStream();
-            bitmap.compress(CompressFormat.PNG, 100, stream);
-            mFileCache.put(spec.getCacheFileName(), new ByteArrayInputStream(stream.toByteArray()));
+    private void compress(AbstractFileCache variants, final ImageSpec spec, Bitmap bitmap) {
+        BitmapLruCache cache = mBitmapCache;
+        Bitmap held = cache.acquire(spec);
+        if (held == null) {
+            return;
         }
+        try {
+            if (held == bitmap) {
+                compressHeld(variants, spec, bitmap);
+            }
+        } finally {
+            cache.release(held);
+        }
+    }
+
+    /**
+     * Compress a bitmap held from the memory cache.
+     */
+    private void compressHeld(AbstractFileCache variants, final ImageSpec spec, Bitmap bitmap) {
+        CompressFormat format = mVariantFormat;
+        if (bitmap.hasAlpha() && format == CompressFormat.JPEG) {
+            format = CompressFormat.PNG;
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        if (!bitmap.compress(format, mVariantQuality, stream) || mBitmapCache.get(spec) != bitmap) {
+            return;
+        }
+        CacheMetadata metadata = describeSource(spec);
+        if (metadata == null) {
+            return;
+        }
+        variants.put(spec.getMemCacheKey(), new ByteArrayInputStream(stream.toByteArray()), null, metadata);
+        Log.d(TAG, "variant:" + spec.toString() + "," + stream.size());
     }
 
-    /** The Constant CORE_POOL_SIZE. */
-    private static final int CORE_POOL_SIZE = 4;
+    /** The size of the variant cache. */
+    private static final long VARIANT_CACHE_SIZE = 1024 * 1024 * 4;
 
-    /** The Constant MAXIMUM_POOL_SIZE. */
-    private static final int MAXIMUM_POOL_SIZE = 8;
+    /** The default quality of variants. */
+    public static final int DEFAULT_VARIANT_QUALITY = 85;
 
-    /** The Constant KEEP_ALIVE. */
-    private static final int KEEP_ALIVE = 1;
+    /** Network fetches are I/O-bound and mostly wait on the socket. */
+    private static final int NETWORK_THREADS = 4;
 
-    /** The Constant sThreadFactory. */
-    private final ThreadFactory mThreadFactory = new ThreadFactory() {
-        private final AtomicInteger mCount = new AtomicInteger(1);
+    /** Disk cache lookups are short and mostly wait on storage. */
+    private static final int DISK_THREADS = 2;
 
-        public Thread newThread(Runnable r) {
-            Thread thread = new Thread(r, "ThumbThread#" + mCount.getAndIncrement());
-            thread.setPriority(THREAD_PRIORITY_BACKGROUND);
-            return thread;
-        }
-    };
+    /** Decoding and transforming are CPU-bound. */
+    private static final int DECODE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /** The decode threads that may wait on a download, see {@link StreamedDecode}. */
+    private static final int MAX_STREAMING_DECODES = Math.max(1, DECODE_THREADS / 2);
+
+    /** How far a streamed decode may fall behind its download. */
+    private static final int PIPE_SIZE = 128 * 1024;
+
+    /** The decodes streaming from a download. */
+    private final AtomicInteger mStreamingDecodes = new AtomicInteger();
+
+    /** The m network stage. */
+    private StageExecutor mNetworkStage;
+
+    /** The m disk stage. */
+    private StageExecutor mDiskStage;
+
+    /** The m decode stage. */
+    private StageExecutor mDecodeStage;
 
-    /** The m excutors. */
-    private ListeningExecutorService mExecutors;
+    /** The http client shared by all fetches, guarded by this. */
+    private HttpClient mHttpClient;
+
+    /** Schedules download retries. */
+    private ScheduledExecutorService mRetryTimer;
+
+    /** The circuit breakers by host. */
+    private final ConcurrentMap<String, CircuitBreaker> mCircuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+    /** All stages, null until first used or after close. */
+    private List<StageExecutor> mStages;
 
     /**
-     * Gets the executors.
+     * Gets the stages of the pipeline, creating them if needed.
      * 
-     * @return the executors
+     * @return the stages
      */
-    private ListeningExecutorService getExecutors() {
-        if (mExecutors == null) {
-            mExecutors = MoreExecutors.listeningDecorator(new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE,
-                    KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>(), mThreadFactory));
+    public synchronized List<StageExecutor> getStages() {
+        if (mStages == null) {
+            mNetworkStage = new StageExecutor("Network", NETWORK_THREADS);
+            mDiskStage = new StageExecutor("Disk", DISK_THREADS);
+            mDecodeStage = new StageExecutor("Decode", DECODE_THREADS);
+            List<StageExecutor> stages = new ArrayList<StageExecutor>();
+            stages.add(mNetworkStage);
+            stages.add(mDiskStage);
+            stages.add(mDecodeStage);
+            mStages = Collections.unmodifiableList(stages);
+            mRetryTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "RetryTimer");
+                }
+            });
         }
-        return mExecutors;
+        return mStages;
+    }
+
+    private synchronized ScheduledExecutorService getRetryTimer() {
+        getStages();
+        return mRetryTimer;
     }
 
+    private synchronized StageExecutor getNetworkStage() {
+        getStages();
+        return mNetworkStage;
+    }
+
+    private synchronized StageExecutor getDiskStage() {
+        getStages();
+        return mDiskStage;
+    }
+
+    private synchronized StageExecutor getDecodeStage() {
+        getStages();
+        return mDecodeStage;
+    }
+
+    /** The executor that callbacks are notified on. */
+    private volatile Executor mCallbackExecutor = MoreExecutors.sameThreadExecutor();
+
     /** The Constant USE_FAST_THUMB. */
     private static final boolean USE_FAST_THUMB = true;
 }
@@ -1,10 +1,20 @@
 package org.qinyu.imageloader;
 
+import org.qinyu.cache.BitmapLruCache;
 
 /**
  * The Class ImageSpec.
  */
-public class ImageSpec {
+public class ImageSpec implements BitmapLruCache.Variant {
+
+    /** The priority of images that are prefetched ahead of scrolling. */
+    public static final int PRIORITY_PREFETCH = 0;
+
+    /** The priority of images just outside the visible area. */
+    public static final int PRIORITY_NEAR_VISIBLE = 1;
+
+    /** The priority of visible images, the default. */
+    public static final int PRIORITY_VISIBLE = 2;
 
     /*
      * (non-Javadoc)
@@ -29,6 +39,9 @@ public class ImageSpec {
     /** The url. */
     protected final String url;
 
+    /** The priority, not part of the identity of the spec. */
+    private volatile int priority = PRIORITY_VISIBLE;
+
     /**
      * Instantiates a new image spec.
      * 
@@ -76,6 +89,71 @@ public class ImageSpec {
         return Integer.toHexString(getUniqueId().hashCode());
     }
 
+    /**
+     * Gets the memory cache key, which includes the target size and
+     * orientation.
+     * 
+     * @return the memory cache key
+     */
+    @Override
+    public String getMemCacheKey() {
+        return getCacheFileName() + "_" + width + "x" + height + "_" + orientation;
+    }
+
+    /**
+     * Gets the memory cache group, shared by all sizes of the same image.
+     * 
+     * @return the memory cache group
+     */
+    @Override
+    public String getMemCacheGroup() {
+        return getCacheFileName();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * org.qinyu.cache.BitmapLruCache.Variant#canDownscaleTo(org.qinyu.cache
+     * .BitmapLruCache.Variant)
+     */
+    @Override
+    public boolean canDownscaleTo(BitmapLruCache.Variant other) {
+        if (!(other instanceof ImageSpec)) {
+            return false;
+        }
+        ImageSpec spec = (ImageSpec) other;
+        return orientation == spec.orientation && getMemCacheGroup().equals(spec.getMemCacheGroup())
+                && covers(width, spec.width) && covers(height, spec.height);
+    }
+
+    /**
+     * Checks if a bound covers another one, 0 standing for no bound.
+     */
+    private static boolean covers(int bound, int other) {
+        return bound <= 0 || (other > 0 && bound >= other);
+    }
+
+    /**
+     * Gets the priority.
+     * 
+     * @return the priority
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the priority. Within a priority the newest request runs first.
+     * 
+     * @param priority
+     *            one of {@link #PRIORITY_VISIBLE},
+     *            {@link #PRIORITY_NEAR_VISIBLE} and {@link #PRIORITY_PREFETCH}
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
     /**
      * Gets the url.
      * 
@@ -2,15 +2,19 @@ package org.qinyu.imageloader;
 
 import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
 import java.util.WeakHashMap;
 
-import org.qinyu.utils.Utils;
+import org.qinyu.imageloader.ViewRegistry.ViewKey;
+import org.qinyu.utils.FrameBatcher;
 
 import android.graphics.Bitmap;
 import android.os.Handler;
@@ -18,11 +22,12 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.view.View;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+import android.widget.AdapterView;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 
-import com.google.common.util.concurrent.Monitor;
-
 /**
  * The Class ImageViewManager.
  */
@@ -31,8 +36,8 @@ public class ImageViewManager {
     /** The Constant SUBMIT. */
     private static final int SUBMIT = 1;
 
-    /** The m callback. */
-    private Callback<ImageViewManager.ViewHolder> mCallback = new Callback<ImageViewManager.ViewHolder>() {
+    /** The m callback, it releases each bitmap once its view shows another. */
+    private Callback<ImageViewManager.ViewHolder> mCallback = new ReleasingCallback<ImageViewManager.ViewHolder>() {
 
         @Override
         public void onStart(final ViewHolder t, final ImageSpec spec) {
@@ -55,6 +60,8 @@ public class ImageViewManager {
             final ImageView iv = t.mImageViewWeakRef.get();
             if (iv != null) {
                 showImage(iv, t.mProgressBarWeakRef.get(), bitmap, spec);
+            } else {
+                mLoader.releaseBitmap(bitmap);
             }
         }
 
@@ -72,12 +79,12 @@ public class ImageViewManager {
      * Instantiates a new image view manager.
      */
     private ImageViewManager() {
-        mImageViewMap = Collections.synchronizedMap(new WeakHashMap<ImageView, ImageSpec>());
-        mMapMonitor = new Monitor();
+        mRegistry = new ViewRegistry();
+        mFrameBatcher = new FrameBatcher();
     }
 
-    /** The s info cache. */
-    private Map<ImageView, ImageSpec> mImageViewMap;
+    /** The spec each image view waits for. */
+    private final ViewRegistry mRegistry;
 
     /** The m looper. */
     private Looper mLooper;
@@ -85,8 +92,40 @@ public class ImageViewManager {
     /** The m handler. */
     private SubmitHandler mHandler;
 
-    /** The m map monitor. */
-    private Monitor mMapMonitor;
+    /**
+     * The requests recorded while paused, guarded by itself. The views are held
+     * weakly, so a paused list does not keep its activity from being collected.
+     */
+    private final Map<ViewKey, SubmitInfo> mPendingSubmits = new LinkedHashMap<ViewKey, SubmitInfo>();
+
+    /** The keys of collected views with a recorded request. */
+    private final ReferenceQueue<ImageView> mCollectedPending = new ReferenceQueue<ImageView>();
+
+    /** The m paused. */
+    private volatile boolean mPaused;
+
+    /** Applies loading results to views in batches, once per frame. */
+    private final FrameBatcher mFrameBatcher;
+
+    /**
+     * The loaded bitmap each view shows, held until the view shows another.
+     * Only used on the UI thread.
+     */
+    private final Map<ImageView, Bitmap> mShown = new WeakHashMap<ImageView, Bitmap>();
+
+    /** The loader requests were submitted to, to release results for collected views. */
+    private volatile ImageLoader mLoader;
+
+    /**
+     * Sets the time each frame may spend applying loaded images to views.
+     * Results that do not fit are applied in the following frames.
+     * 
+     * @param budget
+     *            the budget in milliseconds
+     */
+    public void setFrameBudget(long budget) {
+        mFrameBatcher.setBudget(budget);
+    }
 
     /**
      * Checks if is image view waiting.
@@ -98,15 +137,7 @@ public class ImageViewManager {
      * @return true, if is image view waiting
      */
     private boolean isImageViewWaiting(ImageView iv, ImageSpec spec) {
-        if (iv != null && spec != null) {
-            mMapMonitor.enter();
-            try {
-                return mImageViewMap.containsKey(iv) && spec.equals(mImageViewMap.get(iv));
-            } finally {
-                mMapMonitor.leave();
-            }
-        }
-        return false;
+        return mRegistry.isBound(iv, spec);
     }
 
     /**
@@ -122,20 +153,13 @@ public class ImageViewManager {
      *            the spec
      */
     protected void showDefault(final ImageView iv, final ProgressBar view, final int defaultRes, final ImageSpec spec) {
-        Utils.runOnUIThread(iv, new Runnable() {
+        mFrameBatcher.runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                mMapMonitor.enter();
-                boolean imageViewWaiting = false;
-                try {
-                    imageViewWaiting = isImageViewWaiting(iv, spec);
-                    mImageViewMap.remove(iv);
-                } finally {
-                    mMapMonitor.leave();
-                }
-                if (imageViewWaiting) {
+                if (iv != null && spec != null && mRegistry.unbind(iv, spec)) {
                     if (defaultRes > 0) {
                         iv.setImageResource(defaultRes);
+                        setShown(iv, null);
                     }
                     if (view != null) {
                         view.setVisibility(View.INVISIBLE);
@@ -146,7 +170,8 @@ public class ImageViewManager {
     }
 
     /**
-     * Display thumbnail.
+     * Display thumbnail with a priority, for this request only; the priority
+     * of the spec is left as it is.
      * 
      * @param progress
      *            the progress
@@ -156,56 +181,211 @@ public class ImageViewManager {
      *            the spec
      * @param defaultRes
      *            the default res
+     * @param priority
+     *            one of the ImageSpec.PRIORITY_ constants
      */
-    public void display(ProgressBar progress, ImageView iv, ImageSpec spec, int defaultRes) {
+    public void display(ProgressBar progress, ImageView iv, ImageSpec spec, int defaultRes, int priority) {
         if (iv == null || spec == null) {
             return;
         }
 
-        boolean imageViewWaiting = true;
-        mMapMonitor.enter();
-        try {
-            imageViewWaiting = isImageViewWaiting(iv, spec);
-            if (!imageViewWaiting) {
-                cancel(iv);
-                mImageViewMap.put(iv, spec);
+        ImageSpec previous = mRegistry.bind(iv, spec);
+        if (!spec.equals(previous)) {
+            if (previous != null) {
+                cancel(iv, previous);
             }
-        } finally {
-            mMapMonitor.leave();
-        }
-
-        if (!imageViewWaiting) {
-            final Bitmap bitmap = ImageLoader.getInstance(iv.getContext()).findInCache(spec);
+            mLoader = ImageLoader.getInstance(iv.getContext());
+            final Bitmap bitmap = mLoader.acquireFromCache(spec);
             if (bitmap != null) {
                 showImage(iv, progress, bitmap, spec);
                 return;
             }
             showLoading(iv, defaultRes, progress, spec);
-            getSubmitHandler().obtainMessage(SUBMIT, new SubmitInfo(new ViewHolder(iv, progress, defaultRes), spec))
-                    .sendToTarget();
+            SubmitInfo info = new SubmitInfo(new ViewHolder(iv, progress, defaultRes), spec, priority);
+            synchronized (mPendingSubmits) {
+                if (mPaused) {
+                    expungePending();
+                    // the latest request of a view replaces the previous one
+                    mPendingSubmits.remove(new ViewKey(iv));
+                    mPendingSubmits.put(new ViewKey(iv, mCollectedPending), info);
+                    return;
+                }
+            }
+            getSubmitHandler().obtainMessage(SUBMIT, info).sendToTarget();
         }
     }
 
     /**
-     * Cancel.
+     * Display thumbnail.
      * 
+     * @param progress
+     *            the progress
      * @param iv
      *            the iv
+     * @param spec
+     *            the spec
+     * @param defaultRes
+     *            the default res
      */
-    public void cancel(ImageView iv) {
-        if (iv != null) {
-            ImageSpec spec = null;
-            boolean isIn = false;
-            mMapMonitor.enter();
-            try {
-                spec = mImageViewMap.remove(iv);
-                isIn = mImageViewMap.containsValue(spec);
-            } finally {
-                mMapMonitor.leave();
+    public void display(ProgressBar progress, ImageView iv, ImageSpec spec, int defaultRes) {
+        if (spec != null) {
+            display(progress, iv, spec, defaultRes, spec.getPriority());
+        }
+    }
+
+    /**
+     * Pause dispatching requests, typically while a list is flung. Images in
+     * the memory cache are still shown at once; other requests are recorded,
+     * only the latest one per image view, until {@link #resume()}.
+     */
+    public void pause() {
+        synchronized (mPendingSubmits) {
+            mPaused = true;
+        }
+    }
+
+    /**
+     * Resume dispatching, releasing the recorded requests in the order they
+     * were made.
+     */
+    public void resume() {
+        resume(null);
+    }
+
+    /**
+     * Resume dispatching, releasing the recorded requests in the visible order
+     * of the list they belong to.
+     * 
+     * @param list
+     *            the list whose positions order the requests, may be null
+     */
+    public void resume(final AdapterView<?> list) {
+        List<SubmitInfo> pending;
+        synchronized (mPendingSubmits) {
+            mPaused = false;
+            expungePending();
+            if (mPendingSubmits.isEmpty()) {
+                return;
+            }
+            pending = new ArrayList<SubmitInfo>(mPendingSubmits.values());
+            mPendingSubmits.clear();
+        }
+
+        if (list != null) {
+            Collections.sort(pending, new Comparator<SubmitInfo>() {
+                @Override
+                public int compare(SubmitInfo lhs, SubmitInfo rhs) {
+                    return getPosition(rhs) - getPosition(lhs);
+                }
+
+                private int getPosition(SubmitInfo info) {
+                    ImageView iv = info.mViewHolder.mImageViewWeakRef.get();
+                    int position = iv != null ? list.getPositionForView(iv) : AdapterView.INVALID_POSITION;
+                    return position == AdapterView.INVALID_POSITION ? Integer.MAX_VALUE : position;
+                }
+            });
+        } else {
+            Collections.reverse(pending);
+        }
+        // sent in reverse, as the loader runs the newest request first
+        SubmitHandler handler = getSubmitHandler();
+        for (int i = 0; i < pending.size(); i++) {
+            handler.obtainMessage(SUBMIT, pending.get(i)).sendToTarget();
+        }
+    }
+
+    /**
+     * Drop the recorded requests of collected views. Must be called with
+     * {@link #mPendingSubmits} locked.
+     */
+    private void expungePending() {
+        Reference<? extends ImageView> ref;
+        while ((ref = mCollectedPending.poll()) != null) {
+            // a collected key only equals itself
+            mPendingSubmits.remove(ref);
+        }
+    }
+
+    /**
+     * Checks if dispatching is paused.
+     * 
+     * @return true, if paused
+     */
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * Gets a scroll listener that pauses dispatching while the list is flung
+     * and resumes it when the list settles.
+     * 
+     * @param delegate
+     *            a listener to forward scroll events to, may be null
+     * @return the scroll listener
+     */
+    public OnScrollListener getPauseOnScrollListener(final OnScrollListener delegate) {
+        return new OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                if (scrollState == SCROLL_STATE_FLING) {
+                    pause();
+                } else {
+                    resume(view);
+                }
+                if (delegate != null) {
+                    delegate.onScrollStateChanged(view, scrollState);
+                }
             }
-            if (spec != null && !isIn) {
-                ImageLoader.getInstance(iv.getContext()).cancel(spec);
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (delegate != null) {
+                    delegate.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+                }
             }
+        };
+    }
+
+    /**
+     * Cancel. The loading itself is only cancelled when no other view waits
+     * for the same spec.
+     * 
+     * @param iv
+     *            the iv
+     */
+    public void cancel(ImageView iv) {
+        if (iv != null) {
+            cancel(iv, mRegistry.unbind(iv));
+        }
+    }
+
+    /**
+     * Gets the number of image views waiting for the same image as a spec,
+     * at the same size and orientation.
+     *
+     * @param spec
+     *            the spec
+     * @return the number of waiting image views
+     */
+    public int getWaitingViewCount(ImageSpec spec) {
+        return spec == null ? 0 : mRegistry.getBoundCount(spec);
+    }
+
+    /**
+     * Drop the pending request of a view and detach it from the loading of the
+     * spec it was bound to.
+     * 
+     * @param iv
+     *            the iv
+     * @param spec
+     *            the spec, may be null
+     */
+    private void cancel(ImageView iv, ImageSpec spec) {
+        synchronized (mPendingSubmits) {
+            mPendingSubmits.remove(new ViewKey(iv));
+        }
+        if (spec != null) {
+            ImageLoader.getInstance(iv.getContext()).cancel(spec, new ViewHolder(iv, null, 0));
         }
     }
 
@@ -231,17 +411,15 @@ public class ImageViewManager {
         if (mHandler != null) {
             mHandler.removeMessages(SUBMIT);
         }
+        synchronized (mPendingSubmits) {
+            mPendingSubmits.clear();
+            mPaused = false;
+        }
 
-        mMapMonitor.enter();
-        try {
-            Set<Entry<ImageView, ImageSpec>> entrySet = mImageViewMap.entrySet();
-            for (Iterator<Entry<ImageView, ImageSpec>> iterator = entrySet.iterator(); iterator.hasNext();) {
-                Entry<ImageView, ImageSpec> next = iterator.next();
-                ImageLoader.getInstance(next.getKey().getContext()).cancel(next.getValue());
-            }
-            mImageViewMap.clear();
-        } finally {
-            mMapMonitor.leave();
+        List<ImageSpec> specs = new ArrayList<ImageSpec>();
+        List<ImageView> views = mRegistry.clear(specs);
+        for (int i = 0; i < views.size(); i++) {
+            ImageLoader.getInstance(views.get(i).getContext()).cancel(specs.get(i));
         }
     }
 
@@ -273,19 +451,38 @@ public class ImageViewManager {
      *            the spec
      */
     protected void showImage(final ImageView iv, final ProgressBar view, final Bitmap bitmap, final ImageSpec spec) {
-        Utils.runOnUIThread(iv, new Runnable() {
+        mFrameBatcher.runOnUiThread(new Runnable() {
             @Override
             public void run() {
                 if (isImageViewWaiting(iv, spec)) {
                     iv.setImageBitmap(bitmap);
+                    setShown(iv, bitmap);
                     if (view != null) {
                         view.setVisibility(View.INVISIBLE);
                     }
+                } else {
+                    ImageLoader.getInstance(iv.getContext()).releaseBitmap(bitmap);
                 }
             }
         });
     }
 
+    /**
+     * Record the loaded bitmap a view shows, and release the one it showed
+     * before. Called on the UI thread.
+     * 
+     * @param iv
+     *            the iv
+     * @param bitmap
+     *            the bitmap, or null if the view shows a resource
+     */
+    private void setShown(ImageView iv, Bitmap bitmap) {
+        Bitmap previous = bitmap != null ? mShown.put(iv, bitmap) : mShown.remove(iv);
+        if (previous != null) {
+            ImageLoader.getInstance(iv.getContext()).releaseBitmap(previous);
+        }
+    }
+
     /**
      * Show loading.
      * 
@@ -299,12 +496,13 @@ public class ImageViewManager {
      *            the spec
      */
     protected void showLoading(final ImageView iv, final int defaultRes, final ProgressBar view, final ImageSpec spec) {
-        Utils.runOnUIThread(iv, new Runnable() {
+        mFrameBatcher.runOnUiThread(new Runnable() {
             @Override
             public void run() {
                 if (isImageViewWaiting(iv, spec)) {
                     if (defaultRes > 0) {
                         iv.setImageResource(defaultRes);
+                        setShown(iv, null);
                     }
                     if (view != null) {
                         view.setVisibility(View.VISIBLE);
@@ -344,6 +542,31 @@ public class ImageViewManager {
             mDefaultImageRes = defaultImageRes;
         }
 
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            ImageView imageView = mImageViewWeakRef.get();
+            return imageView == null ? 0 : System.identityHashCode(imageView);
+        }
+
+        /**
+         * View holders are equal when they hold the same image view, so that
+         * a request can be cancelled by its view.
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof ViewHolder))
+                return false;
+            ImageView imageView = mImageViewWeakRef.get();
+            return imageView != null && imageView == ((ViewHolder) obj).mImageViewWeakRef.get();
+        }
+
     }
 
     /**
@@ -375,7 +598,8 @@ public class ImageViewManager {
                 ImageView imageView = ((ViewHolder) info.mViewHolder).mImageViewWeakRef.get();
                 if (imageView != null) {
                     if (isImageViewWaiting(imageView, info.mImageSpec)) {
-                        ImageLoader.getInstance(imageView.getContext()).submit(info.mImageSpec, info.mViewHolder, mCallback);
+                        ImageLoader.getInstance(imageView.getContext()).submit(info.mImageSpec, info.mViewHolder, mCallback,
+                                info.mPriority);
                     }
                 }
                 break;
@@ -398,6 +622,9 @@ public class ImageViewManager {
         /** The spec. */
         private ImageSpec mImageSpec;
 
+        /** The priority. */
+        private int mPriority;
+
         /**
          * Instantiates a new submit info.
          * 
@@ -405,10 +632,13 @@ public class ImageViewManager {
          *            the token
          * @param imageSpec
          *            the spec
+         * @param priority
+         *            the priority
          */
-        private SubmitInfo(ViewHolder viewHolder, ImageSpec imageSpec) {
+        private SubmitInfo(ViewHolder viewHolder, ImageSpec imageSpec, int priority) {
             mViewHolder = viewHolder;
             mImageSpec = imageSpec;
+            mPriority = priority;
         }
     }
 
@@ -0,0 +1,446 @@
+package org.qinyu.imageloader;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.os.SystemClock;
+
+/**
+ * A task queue for {@link StageExecutor} that runs the highest priority first
+ * and, within a priority, the newest task first.
+ *
+ * So that old work is not starved, a task that has waited
+ * {@link #AGING_INTERVAL} milliseconds gains one priority level, and runs
+ * before the newer tasks of that level; it never passes a task two levels up.
+ * No task ages into the top priority, so a queued task of the top priority
+ * always runs first, its newest first. Tasks
+ * that are not a {@link PrioritizedTask} get {@link ImageSpec#PRIORITY_VISIBLE}.
+ */
+class PriorityTaskQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    /** The time after which a waiting task gains a priority level. */
+    static final long AGING_INTERVAL = 2000;
+
+    /**
+     * A runnable with a priority.
+     */
+    static class PrioritizedTask implements Runnable {
+
+        /** The task. */
+        final Runnable task;
+
+        /** The priority, read when the task is queued. */
+        final TaskPriority priority;
+
+        /**
+         * Instantiates a new prioritized task.
+         *
+         * @param task
+         *            the task
+         * @param priority
+         *            the priority
+         */
+        PrioritizedTask(Runnable task, TaskPriority priority) {
+            this.task = task;
+            this.priority = priority;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    /**
+     * A queued task.
+     */
+    private static class Entry {
+
+        /** The task. */
+        final Runnable task;
+
+        /** The time the task was queued. */
+        final long time;
+
+        Entry(Runnable task, long time) {
+            this.task = task;
+            this.time = time;
+        }
+    }
+
+    /** The lanes, one per priority, oldest task first. */
+    private final List<LinkedList<Entry>> mLanes;
+
+    /** The m lock. */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /** The m not empty. */
+    private final Condition mNotEmpty = mLock.newCondition();
+
+    /** The m count. */
+    private int mCount;
+
+    /**
+     * Instantiates a new priority task queue.
+     */
+    PriorityTaskQueue() {
+        mLanes = new ArrayList<LinkedList<Entry>>();
+        for (int i = ImageSpec.PRIORITY_PREFETCH; i <= ImageSpec.PRIORITY_VISIBLE; i++) {
+            mLanes.add(new LinkedList<Entry>());
+        }
+    }
+
+    private static int getLane(int priority) {
+        return Math.max(ImageSpec.PRIORITY_PREFETCH, Math.min(ImageSpec.PRIORITY_VISIBLE, priority))
+                - ImageSpec.PRIORITY_PREFETCH;
+    }
+
+    private static int getLane(Runnable r) {
+        return getLane(r instanceof PrioritizedTask ? ((PrioritizedTask) r).priority.get()
+                : ImageSpec.PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Insert an entry into a lane, keeping the lane ordered by time.
+     */
+    private static void insert(LinkedList<Entry> lane, Entry entry) {
+        ListIterator<Entry> iterator = lane.listIterator(lane.size());
+        while (iterator.hasPrevious()) {
+            if (iterator.previous().time <= entry.time) {
+                iterator.next();
+                break;
+            }
+        }
+        iterator.add(entry);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.Queue#offer(java.lang.Object)
+     */
+    @Override
+    public boolean offer(Runnable e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        mLock.lock();
+        try {
+            mLanes.get(getLane(e)).addLast(new Entry(e, SystemClock.uptimeMillis()));
+            mCount++;
+            mNotEmpty.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object, long,
+     * java.util.concurrent.TimeUnit)
+     */
+    @Override
+    public boolean offer(Runnable e, long timeout, TimeUnit unit) {
+        return offer(e);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.BlockingQueue#put(java.lang.Object)
+     */
+    @Override
+    public void put(Runnable e) {
+        offer(e);
+    }
+
+    /**
+     * Move the queued tasks of a priority that was raised to its new lane,
+     * keeping the time they were queued.
+     *
+     * @param priority
+     *            the priority
+     */
+    void reprioritize(TaskPriority priority) {
+        mLock.lock();
+        try {
+            LinkedList<Entry> target = mLanes.get(getLane(priority.get()));
+            for (int i = 0; i < mLanes.size(); i++) {
+                LinkedList<Entry> lane = mLanes.get(i);
+                if (lane == target) {
+                    continue;
+                }
+                for (Iterator<Entry> iterator = lane.iterator(); iterator.hasNext();) {
+                    Entry next = iterator.next();
+                    if (next.task instanceof PrioritizedTask && ((PrioritizedTask) next.task).priority == priority) {
+                        iterator.remove();
+                        insert(target, next);
+                    }
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Find the lane to take from and whether to take its oldest task. Must
+     * be called with the lock held and a non-empty queue.
+     */
+    private LinkedList<Entry> select(boolean[] oldest) {
+        long now = SystemClock.uptimeMillis();
+        LinkedList<Entry> best = null;
+        long bestPriority = Long.MIN_VALUE;
+        for (int i = mLanes.size() - 1; i >= 0; i--) {
+            LinkedList<Entry> lane = mLanes.get(i);
+            if (lane.isEmpty()) {
+                continue;
+            }
+            if (i > bestPriority) {
+                best = lane;
+                bestPriority = i;
+                oldest[0] = false;
+            }
+            if (i + 1 >= mLanes.size() - 1) {
+                // nothing ages into the top lane, visible work is never passed
+                continue;
+            }
+            long aged = Math.min(i + 1, i + (now - lane.getFirst().time) / AGING_INTERVAL);
+            if (aged > i && aged >= bestPriority) {
+                best = lane;
+                bestPriority = aged;
+                oldest[0] = true;
+            }
+        }
+        return best;
+    }
+
+    private Runnable dequeue() {
+        boolean[] oldest = new boolean[1];
+        LinkedList<Entry> lane = select(oldest);
+        mCount--;
+        return oldest[0] ? lane.removeFirst().task : lane.removeLast().task;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.Queue#poll()
+     */
+    @Override
+    public Runnable poll() {
+        mLock.lock();
+        try {
+            return mCount == 0 ? null : dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.BlockingQueue#poll(long,
+     * java.util.concurrent.TimeUnit)
+     */
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            while (mCount == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = mNotEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.BlockingQueue#take()
+     */
+    @Override
+    public Runnable take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            while (mCount == 0) {
+                mNotEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.Queue#peek()
+     */
+    @Override
+    public Runnable peek() {
+        mLock.lock();
+        try {
+            if (mCount == 0) {
+                return null;
+            }
+            boolean[] oldest = new boolean[1];
+            LinkedList<Entry> lane = select(oldest);
+            return oldest[0] ? lane.getFirst().task : lane.getLast().task;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.AbstractCollection#remove(java.lang.Object)
+     */
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+        mLock.lock();
+        try {
+            for (int i = 0; i < mLanes.size(); i++) {
+                for (Iterator<Entry> iterator = mLanes.get(i).iterator(); iterator.hasNext();) {
+                    if (iterator.next().task == o) {
+                        iterator.remove();
+                        mCount--;
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.AbstractCollection#size()
+     */
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.BlockingQueue#remainingCapacity()
+     */
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection)
+     */
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection,
+     * int)
+     */
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        mLock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && mCount > 0) {
+                c.add(dequeue());
+                n++;
+            }
+            return n;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Iterate over a snapshot of the queued tasks. Removal through the
+     * iterator removes the task from the queue.
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        final List<Runnable> snapshot = new ArrayList<Runnable>();
+        mLock.lock();
+        try {
+            for (int i = 0; i < mLanes.size(); i++) {
+                for (Iterator<Entry> iterator = mLanes.get(i).iterator(); iterator.hasNext();) {
+                    snapshot.add(iterator.next().task);
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        final Iterator<Runnable> it = snapshot.iterator();
+        return new Iterator<Runnable>() {
+            private Runnable mLast;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                mLast = it.next();
+                return mLast;
+            }
+
+            @Override
+            public void remove() {
+                if (mLast == null) {
+                    throw new IllegalStateException();
+                }
+                PriorityTaskQueue.this.remove(mLast);
+                mLast = null;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,11 @@
+package org.qinyu.imageloader;
+
+/**
+ * A callback that gives back the bitmaps it is passed. The bitmap passed to
+ * {@link #onSuccess} is held until it is released with
+ * {@link ImageLoader#releaseBitmap(android.graphics.Bitmap)}, and once it left
+ * the memory cache it is pooled for later decodes. Bitmaps passed to a plain
+ * {@link Callback} are never pooled.
+ */
+public interface ReleasingCallback<T> extends Callback<T> {
+}
@@ -0,0 +1,161 @@
+package org.qinyu.imageloader;
+
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.qinyu.imageloader.PriorityTaskQueue.PrioritizedTask;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * The executor of one stage of the loading pipeline, such as network, disk or
+ * decode.
+ *
+ * Each stage has a fixed number of threads sized for its kind of work. Idle
+ * threads time out, and the queue depth and throughput of the stage can be
+ * read for monitoring. Queued tasks run by priority, newest first, see
+ * {@link PriorityTaskQueue}.
+ */
+public class StageExecutor extends ThreadPoolExecutor {
+
+    /** The Constant KEEP_ALIVE. */
+    private static final int KEEP_ALIVE = 1;
+
+    /** The name. */
+    private final String mName;
+
+    /** The time the stage was created. */
+    private final long mStartTime;
+
+    /**
+     * Instantiates a new stage executor.
+     *
+     * @param name
+     *            the name of the stage
+     * @param threads
+     *            the number of threads
+     */
+    StageExecutor(final String name, int threads) {
+        super(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS, new PriorityTaskQueue(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, name + "Thread#" + mCount.getAndIncrement());
+                    }
+                });
+        allowCoreThreadTimeOut(true);
+        mName = name;
+        mStartTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Submit a task. If the task is cancelled while queued it is removed from
+     * the queue at once instead of waiting for a thread.
+     *
+     * @param <T>
+     *            the generic type
+     * @param callable
+     *            the callable
+     * @param priority
+     *            the priority, one of the ImageSpec.PRIORITY_ constants
+     * @return the listenable future
+     */
+    <T> ListenableFuture<T> submitTask(Callable<T> callable, int priority) {
+        return submitTask(callable, new TaskPriority(priority));
+    }
+
+    /**
+     * Submit a task with a priority that may be raised while it is queued.
+     *
+     * @param <T>
+     *            the generic type
+     * @param callable
+     *            the callable
+     * @param priority
+     *            the priority
+     * @return the listenable future
+     * @see #reprioritize(TaskPriority)
+     */
+    <T> ListenableFuture<T> submitTask(Callable<T> callable, TaskPriority priority) {
+        final ListenableFutureTask<T> task = ListenableFutureTask.create(callable);
+        final PrioritizedTask command = new PrioritizedTask(task, priority);
+        task.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (task.isCancelled()) {
+                    remove(command);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        execute(command);
+        return task;
+    }
+
+    /**
+     * Move the queued tasks of a priority that was raised ahead accordingly.
+     *
+     * @param priority
+     *            the priority
+     */
+    void reprioritize(TaskPriority priority) {
+        ((PriorityTaskQueue) getQueue()).reprioritize(priority);
+    }
+
+    /**
+     * Gets the name.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Gets the number of tasks waiting for a thread.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    /**
+     * Gets the average number of tasks completed per second since the stage
+     * was created.
+     *
+     * @return the throughput
+     */
+    public float getThroughput() {
+        long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+        return elapsed > 0 ? getCompletedTaskCount() * 1000f / elapsed : 0;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.ThreadPoolExecutor#toString()
+     */
+    @Override
+    public String toString() {
+        return "StageExecutor [name=" + mName + ", active=" + getActiveCount() + ", queue=" + getQueueDepth()
+                + ", completed=" + getCompletedTaskCount() + ", throughput=" + getThroughput() + "]";
+    }
+
+}
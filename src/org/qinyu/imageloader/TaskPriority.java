@@ -0,0 +1,49 @@
+package org.qinyu.imageloader;
+
+/**
+ * The priority of a loading task, shared by the stage tasks it submits.
+ *
+ * It can only be raised, when a request of a higher priority joins a task that
+ * is already loading; see {@link StageExecutor#reprioritize(TaskPriority)} for
+ * moving the queued stage tasks along.
+ */
+final class TaskPriority {
+
+    /** The m value. */
+    private volatile int mValue;
+
+    /**
+     * Instantiates a new task priority.
+     *
+     * @param value
+     *            one of the ImageSpec.PRIORITY_ constants
+     */
+    TaskPriority(int value) {
+        mValue = value;
+    }
+
+    /**
+     * Gets the value.
+     *
+     * @return the value
+     */
+    int get() {
+        return mValue;
+    }
+
+    /**
+     * Raise the priority.
+     *
+     * @param value
+     *            the new value
+     * @return true, if the value was lower before
+     */
+    synchronized boolean raise(int value) {
+        if (value <= mValue) {
+            return false;
+        }
+        mValue = value;
+        return true;
+    }
+
+}
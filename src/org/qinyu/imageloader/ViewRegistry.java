@@ -0,0 +1,235 @@
+package org.qinyu.imageloader;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.widget.ImageView;
+
+/**
+ * Records which spec each image view is waiting for, without locks.
+ *
+ * The forward index maps a view to its spec and holds the view weakly, so a
+ * view that is no longer used can be collected; its binding is dropped the
+ * next time the registry is touched. The reverse index counts the views bound
+ * to each {@link ImageSpec#getMemCacheKey() memory cache key}. Binding,
+ * unbinding and checking a view are constant time.
+ */
+class ViewRegistry {
+
+    /**
+     * A weak key that compares views by identity. It also keys the requests
+     * {@link ImageViewManager} records while paused.
+     */
+    static final class ViewKey extends WeakReference<ImageView> {
+
+        /** The identity hash of the view, kept once the view is collected. */
+        private final int mHash;
+
+        /**
+         * Instantiates a key to store in the registry.
+         *
+         * @param iv
+         *            the image view
+         * @param queue
+         *            the queue notified when the view is collected
+         */
+        ViewKey(ImageView iv, ReferenceQueue<ImageView> queue) {
+            super(iv, queue);
+            mHash = System.identityHashCode(iv);
+        }
+
+        /**
+         * Instantiates a key for lookups only.
+         *
+         * @param iv
+         *            the image view
+         */
+        ViewKey(ImageView iv) {
+            super(iv);
+            mHash = System.identityHashCode(iv);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof ViewKey))
+                return false;
+            ImageView iv = get();
+            return iv != null && iv == ((ViewKey) obj).get();
+        }
+    }
+
+    /** The forward index, view to spec. */
+    private final ConcurrentMap<ViewKey, ImageSpec> mSpecs = new ConcurrentHashMap<ViewKey, ImageSpec>();
+
+    /** The reverse index, memory cache key to the number of bound views. */
+    private final ConcurrentMap<String, AtomicInteger> mCounts = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /** The keys of collected views. */
+    private final ReferenceQueue<ImageView> mCollected = new ReferenceQueue<ImageView>();
+
+    /**
+     * Bind a view to a spec, replacing its previous binding.
+     *
+     * @param iv
+     *            the image view
+     * @param spec
+     *            the spec
+     * @return the spec the view was bound to before, or null
+     */
+    ImageSpec bind(ImageView iv, ImageSpec spec) {
+        expunge();
+        ImageSpec previous = mSpecs.put(new ViewKey(iv, mCollected), spec);
+        if (previous == null || !previous.getMemCacheKey().equals(spec.getMemCacheKey())) {
+            increment(spec.getMemCacheKey());
+            if (previous != null) {
+                decrement(previous.getMemCacheKey());
+            }
+        }
+        return previous;
+    }
+
+    /**
+     * Unbind a view.
+     *
+     * @param iv
+     *            the image view
+     * @return the spec the view was bound to, or null
+     */
+    ImageSpec unbind(ImageView iv) {
+        expunge();
+        ImageSpec previous = mSpecs.remove(new ViewKey(iv));
+        if (previous != null) {
+            decrement(previous.getMemCacheKey());
+        }
+        return previous;
+    }
+
+    /**
+     * Unbind a view only if it is still bound to the given spec.
+     *
+     * @param iv
+     *            the image view
+     * @param spec
+     *            the spec
+     * @return true, if the view was bound to the spec
+     */
+    boolean unbind(ImageView iv, ImageSpec spec) {
+        expunge();
+        if (mSpecs.remove(new ViewKey(iv), spec)) {
+            decrement(spec.getMemCacheKey());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks if a view is still waiting for a spec.
+     *
+     * @param iv
+     *            the image view
+     * @param spec
+     *            the spec
+     * @return true, if the view is bound to the spec
+     */
+    boolean isBound(ImageView iv, ImageSpec spec) {
+        return iv != null && spec != null && spec.equals(mSpecs.get(new ViewKey(iv)));
+    }
+
+    /**
+     * Gets the number of views bound to specs with the memory cache key of the
+     * given spec.
+     *
+     * @param spec
+     *            the spec
+     * @return the number of bound views
+     */
+    int getBoundCount(ImageSpec spec) {
+        expunge();
+        AtomicInteger count = mCounts.get(spec.getMemCacheKey());
+        return count == null ? 0 : Math.max(0, count.get());
+    }
+
+    /**
+     * Unbind all views.
+     *
+     * @param specs
+     *            receives one spec per memory cache key that live views were
+     *            bound to
+     * @return a live view for each spec added, in the same order
+     */
+    List<ImageView> clear(List<ImageSpec> specs) {
+        expunge();
+        List<ImageView> views = new ArrayList<ImageView>();
+        Set<String> keys = new HashSet<String>();
+        for (Map.Entry<ViewKey, ImageSpec> entry : mSpecs.entrySet()) {
+            ImageSpec spec = entry.getValue();
+            if (mSpecs.remove(entry.getKey(), spec)) {
+                decrement(spec.getMemCacheKey());
+                ImageView iv = entry.getKey().get();
+                if (iv != null && keys.add(spec.getMemCacheKey())) {
+                    views.add(iv);
+                    specs.add(spec);
+                }
+            }
+        }
+        return views;
+    }
+
+    /**
+     * Drop the bindings of collected views.
+     */
+    private void expunge() {
+        Reference<? extends ImageView> ref;
+        while ((ref = mCollected.poll()) != null) {
+            // a collected key only equals itself
+            ImageSpec spec = mSpecs.remove(ref);
+            if (spec != null) {
+                decrement(spec.getMemCacheKey());
+            }
+        }
+    }
+
+    private void increment(String key) {
+        while (true) {
+            AtomicInteger count = mCounts.get(key);
+            if (count == null) {
+                if (mCounts.putIfAbsent(key, new AtomicInteger(1)) == null) {
+                    return;
+                }
+                continue;
+            }
+            int n = count.get();
+            // a counter that dropped to zero is being removed, make a new one
+            if (n > 0 && count.compareAndSet(n, n + 1)) {
+                return;
+            }
+            if (n <= 0) {
+                mCounts.remove(key, count);
+            }
+        }
+    }
+
+    private void decrement(String key) {
+        AtomicInteger count = mCounts.get(key);
+        if (count != null && count.decrementAndGet() <= 0) {
+            mCounts.remove(key, count);
+        }
+    }
+
+}
@@ -1,18 +1,107 @@
 package org.qinyu.utils;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Field;
+
+import org.qinyu.cache.BitmapPool;
+import org.qinyu.utils.CancellationSignal.OnCancelListener;
 
 import android.content.ContentResolver;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.os.Build;
 import android.text.TextUtils;
 import android.util.FloatMath;
+import android.util.Log;
 
 public class BitmapHelper {
+    private static final String TAG = BitmapHelper.class.getSimpleName();
+
     private static final int RETRY_TIMES = 3;
 
+    /** The bytes of a stream kept to decode it again after the bounds pass. */
+    private static final int MARK_LIMIT = 64 * 1024;
+
+    /** Options.inBitmap, only available since Honeycomb. */
+    private static final Field IN_BITMAP = getOptionsField("inBitmap");
+
+    /** Options.inMutable, only available since Honeycomb. */
+    private static final Field IN_MUTABLE = getOptionsField("inMutable");
+
+    /** Since KitKat a pooled bitmap only needs to be large enough. */
+    private static final int VERSION_CODES_KITKAT = 19;
+
+    private static Field getOptionsField(String name) {
+        try {
+            return Options.class.getField(name);
+        } catch (NoSuchFieldException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks if the platform can decode into an existing bitmap.
+     * 
+     * @return true, if decoded bitmaps can be reused
+     */
+    public static boolean canReuseBitmap() {
+        return IN_BITMAP != null && IN_MUTABLE != null;
+    }
+
+    /**
+     * Decode a mutable bitmap, one that a pool takes once it is not used any
+     * more.
+     */
+    private static void setMutable(Options opts) {
+        try {
+            IN_MUTABLE.setBoolean(opts, true);
+            // purgeable bitmaps can not be reused
+            opts.inPurgeable = false;
+        } catch (IllegalAccessException e) {
+            Log.w(TAG, "Can not set inMutable", e);
+        }
+    }
+
+    private static void setInBitmap(Options opts, Bitmap bitmap) {
+        try {
+            IN_BITMAP.set(opts, bitmap);
+        } catch (IllegalAccessException e) {
+            Log.w(TAG, "Can not set inBitmap", e);
+        }
+    }
+
+    /**
+     * Decode into a new bitmap again, still a mutable one.
+     */
+    private static void clearInBitmap(Options opts) {
+        try {
+            IN_BITMAP.set(opts, null);
+        } catch (IllegalAccessException e) {
+            Log.w(TAG, "Can not clear inBitmap", e);
+        }
+    }
+
+    private static Bitmap getInBitmap(Options opts) {
+        if (!canReuseBitmap()) {
+            return null;
+        }
+        try {
+            return (Bitmap) IN_BITMAP.get(opts);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
     public static void fillSuitableSampleSize(BitmapFactory.Options resample, int maxWidth, int maxHeight, int width,
             int height) {
         boolean withinBounds = (maxWidth <= 0 || width <= maxWidth) && (maxHeight <= 0 || height <= maxHeight);
@@ -53,32 +142,47 @@ public class BitmapHelper {
     }
 
     private static abstract class AbstractDecoder {
-        Bitmap decode(int maxWidth, int maxHeight) {
+        Bitmap decode(int maxWidth, int maxHeight, BitmapPool pool, CancellationSignal signal) {
             Options bounds = new Options();
             bounds.inJustDecodeBounds = true;
-            decode(bounds);
+            decode(bounds, signal);
             int imgWidth = bounds.outWidth;
             int imgHeight = bounds.outHeight;
-            boolean cancel = bounds.mCancel;
+            boolean cancel = bounds.mCancel || isCanceled(signal);
             if (!cancel && imgWidth != -1 && imgHeight != -1) {
                 Bitmap decodeFile = null;
                 Options suitableSampleSize = new Options();
                 fillSuitableSampleSize(suitableSampleSize, maxWidth, maxHeight, imgWidth, imgHeight);
+                prepareReuse(suitableSampleSize, imgWidth, imgHeight, pool);
                 int retry = RETRY_TIMES;
-                while (retry > 0)
+                while (retry > 0 && !isCanceled(signal))
                     try {
-                        decodeFile = decode(suitableSampleSize);
+                        decodeFile = decode(suitableSampleSize, signal);
                         if (decodeFile != null)
                             break;
+                        retry--;
+                    } catch (IllegalArgumentException e) {
+                        // the pooled bitmap does not fit, allocate instead
+                        Bitmap inBitmap = getInBitmap(suitableSampleSize);
+                        if (inBitmap == null) {
+                            throw e;
+                        }
+                        clearInBitmap(suitableSampleSize);
+                        pool.put(inBitmap);
+                        retry--;
                     } catch (OutOfMemoryError e) {
                         e.printStackTrace();
                         try {
                             Thread.sleep(1000);
                         } catch (InterruptedException e1) {
-
+                            break;
                         }
                         retry--;
                         suitableSampleSize.inSampleSize *= 2;
+                        if (pool != null && getInBitmap(suitableSampleSize) != null) {
+                            pool.clear();
+                            clearInBitmap(suitableSampleSize);
+                        }
                     }
                 return decodeFile;
             }
@@ -86,9 +190,59 @@ public class BitmapHelper {
 
         }
 
+        /**
+         * Decode into a pooled bitmap if the platform supports it. Before
+         * KitKat only a bitmap of the exact size can be reused, and only
+         * without sub-sampling. With a pool, a miss decodes a mutable bitmap
+         * as well, so that the pool can take it once it is evicted.
+         */
+        private void prepareReuse(Options opts, int imgWidth, int imgHeight, BitmapPool pool) {
+            if (pool == null || !canReuseBitmap()) {
+                return;
+            }
+            opts.inPreferredConfig = Config.ARGB_8888;
+            setMutable(opts);
+            int sample = opts.inSampleSize;
+            if (sample > 1 && Build.VERSION.SDK_INT < VERSION_CODES_KITKAT) {
+                return;
+            }
+            // the decoder rounds sampled sizes up at most
+            int width = (imgWidth + sample - 1) / sample;
+            int height = (imgHeight + sample - 1) / sample;
+            Bitmap reusable = pool.get(width, height, Config.ARGB_8888);
+            if (reusable != null) {
+                setInBitmap(opts, reusable);
+            }
+        }
+
+        /**
+         * Decode, letting the signal abort the decoder with
+         * {@link Options#requestCancelDecode()}.
+         */
+        private Bitmap decode(final Options opts, CancellationSignal signal) {
+            if (signal == null) {
+                return decode(opts);
+            }
+            signal.setOnCancelListener(new OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    opts.requestCancelDecode();
+                }
+            });
+            try {
+                return decode(opts);
+            } finally {
+                signal.setOnCancelListener(null);
+            }
+        }
+
         abstract Bitmap decode(Options opts);
     }
 
+    private static boolean isCanceled(CancellationSignal signal) {
+        return signal != null && signal.isCanceled();
+    }
+
     private static class FileDecoder extends AbstractDecoder {
         private String path;
 
@@ -102,15 +256,34 @@ public class BitmapHelper {
         }
     }
 
+    /**
+     * Decodes a stream that is read once. The bytes read by the bounds pass
+     * are buffered and replayed with mark and reset, so the decode pass does
+     * not need the stream again.
+     */
     private static class StreamDecoder extends AbstractDecoder {
         private InputStream is;
 
+        private boolean read;
+
         public StreamDecoder(InputStream is) {
             super();
-            this.is = is;
+            this.is = is.markSupported() ? is : new BufferedInputStream(is, MARK_LIMIT);
+            this.is.mark(MARK_LIMIT);
         }
 
         protected Bitmap decode(Options opts) {
+            if (read) {
+                try {
+                    is.reset();
+                } catch (IOException e) {
+                    // read past the mark limit, the stream can not be replayed
+                    Log.w(TAG, "Can not rewind stream", e);
+                    return null;
+                }
+                is.mark(MARK_LIMIT);
+            }
+            read = true;
             return BitmapFactory.decodeStream(is, null, opts);
         }
     }
@@ -131,21 +304,116 @@ public class BitmapHelper {
     }
 
     public static Bitmap decodeFile(String path, int maxWidth, int maxHeight) {
+        return decodeFile(path, maxWidth, maxHeight, null);
+    }
+
+    public static Bitmap decodeFile(String path, int maxWidth, int maxHeight, BitmapPool pool) {
+        return decodeFile(path, maxWidth, maxHeight, pool, null);
+    }
+
+    public static Bitmap decodeFile(String path, int maxWidth, int maxHeight, BitmapPool pool,
+            CancellationSignal signal) {
         if (TextUtils.isEmpty(path)) {
             return null;
         }
         if (path.startsWith(ContentResolver.SCHEME_FILE)) {
             path = path.substring(7);
         }
-        return new FileDecoder(path).decode(maxWidth, maxHeight);
+        return new FileDecoder(path).decode(maxWidth, maxHeight, pool, signal);
     }
 
     public static Bitmap decodeStream(InputStream is, int maxWidth, int maxHeight) {
-        return new StreamDecoder(is).decode(maxWidth, maxHeight);
+        return decodeStream(is, maxWidth, maxHeight, null);
+    }
+
+    public static Bitmap decodeStream(InputStream is, int maxWidth, int maxHeight, BitmapPool pool) {
+        return decodeStream(is, maxWidth, maxHeight, pool, null);
+    }
+
+    public static Bitmap decodeStream(InputStream is, int maxWidth, int maxHeight, BitmapPool pool,
+            CancellationSignal signal) {
+        return new StreamDecoder(is).decode(maxWidth, maxHeight, pool, signal);
     }
 
     public static Bitmap decodeResource(Resources res, int id, int maxWidth, int maxHeight) {
-        return new ResourceDecoder(res, id).decode(maxWidth, maxHeight);
+        return decodeResource(res, id, maxWidth, maxHeight, null);
+    }
+
+    public static Bitmap decodeResource(Resources res, int id, int maxWidth, int maxHeight, BitmapPool pool) {
+        return new ResourceDecoder(res, id).decode(maxWidth, maxHeight, pool, null);
+    }
+
+    /**
+     * Scale and rotate a bitmap. The result is drawn into a pooled bitmap when
+     * one of the right size is available, and the source is given back to the
+     * pool afterwards.
+     * 
+     * @param source
+     *            the source bitmap, must not be used by the caller afterwards
+     * @param scale
+     *            the scale
+     * @param rotation
+     *            the rotation in degrees
+     * @param pool
+     *            the pool, may be null
+     * @return the transformed bitmap
+     */
+    public static Bitmap transform(Bitmap source, float scale, int rotation, BitmapPool pool) {
+        Bitmap target = draw(source, scale, rotation, pool);
+        if (pool != null) {
+            pool.put(source);
+        }
+        return target;
+    }
+
+    /**
+     * Scale a bitmap to fit within the given bounds, keeping the source intact.
+     * The result is drawn into a pooled bitmap when one of the right size is
+     * available.
+     * 
+     * @param source
+     *            the source bitmap
+     * @param maxWidth
+     *            the max width, 0 for no bound
+     * @param maxHeight
+     *            the max height, 0 for no bound
+     * @param pool
+     *            the pool, may be null
+     * @return the scaled bitmap, or the source itself if it already fits
+     */
+    public static Bitmap downscale(Bitmap source, int maxWidth, int maxHeight, BitmapPool pool) {
+        float scale = 1;
+        if (maxWidth > 0) {
+            scale = Math.min(scale, (float) maxWidth / source.getWidth());
+        }
+        if (maxHeight > 0) {
+            scale = Math.min(scale, (float) maxHeight / source.getHeight());
+        }
+        if (scale >= 1) {
+            return source;
+        }
+        return draw(source, scale, 0, pool);
+    }
+
+    private static Bitmap draw(Bitmap source, float scale, int rotation, BitmapPool pool) {
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        matrix.postRotate(rotation);
+        RectF bounds = new RectF(0, 0, source.getWidth(), source.getHeight());
+        matrix.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+        int width = Math.max(1, Math.round(bounds.width()));
+        int height = Math.max(1, Math.round(bounds.height()));
+        Config config = source.getConfig() != null ? source.getConfig() : Config.ARGB_8888;
+
+        Bitmap target = pool != null ? pool.get(width, height, config) : null;
+        if (target != null) {
+            target.eraseColor(Color.TRANSPARENT);
+        } else {
+            target = Bitmap.createBitmap(width, height, config);
+        }
+        new Canvas(target).drawBitmap(source, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        return target;
     }
 
 }
@@ -0,0 +1,109 @@
+package org.qinyu.utils;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The Class ByteBufferInputStream.
+ *
+ * An input stream over the remaining bytes of a byte buffer, typically a view
+ * of a memory-mapped file, so that reading it takes no system calls. Supports
+ * mark and reset without a limit, the bytes are all there.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+    /** The m buffer. */
+    private final ByteBuffer mBuffer;
+
+    /**
+     * Instantiates a new byte buffer input stream. The stream reads a view of
+     * the buffer, the position of the buffer itself is not changed.
+     *
+     * @param buffer
+     *            the buffer, read from its position to its limit
+     */
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        mBuffer = buffer.slice();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.InputStream#read()
+     */
+    @Override
+    public int read() {
+        return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    @Override
+    public int read(byte[] buffer, int offset, int count) {
+        if (count == 0) {
+            return 0;
+        }
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        count = Math.min(count, mBuffer.remaining());
+        mBuffer.get(buffer, offset, count);
+        return count;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.InputStream#skip(long)
+     */
+    @Override
+    public long skip(long n) {
+        int skipped = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+        mBuffer.position(mBuffer.position() + skipped);
+        return skipped;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.InputStream#available()
+     */
+    @Override
+    public int available() {
+        return mBuffer.remaining();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.InputStream#markSupported()
+     */
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.InputStream#mark(int)
+     */
+    @Override
+    public void mark(int readlimit) {
+        mBuffer.mark();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.InputStream#reset()
+     */
+    @Override
+    public void reset() {
+        mBuffer.reset();
+    }
+
+}
@@ -0,0 +1,74 @@
+package org.qinyu.utils;
+
+/**
+ * The Class CancellationSignal.
+ *
+ * Lets a long running operation notice that it was cancelled, like
+ * android.os.CancellationSignal which is only available since API 16. The
+ * operation either polls {@link #isCanceled()}, for instance between chunks of
+ * a copy loop, or registers an {@link OnCancelListener} to abort a blocking
+ * call.
+ */
+public class CancellationSignal {
+
+    /**
+     * Listens for cancellation.
+     */
+    public interface OnCancelListener {
+
+        /**
+         * Called when the signal is cancelled, on the cancelling thread.
+         */
+        void onCancel();
+    }
+
+    /** The m canceled. */
+    private boolean mCanceled;
+
+    /** The m listener. */
+    private OnCancelListener mListener;
+
+    /**
+     * Checks if is canceled.
+     *
+     * @return true, if is canceled
+     */
+    public synchronized boolean isCanceled() {
+        return mCanceled;
+    }
+
+    /**
+     * Cancel, and notify the listener if any.
+     */
+    public void cancel() {
+        OnCancelListener listener;
+        synchronized (this) {
+            if (mCanceled) {
+                return;
+            }
+            mCanceled = true;
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onCancel();
+        }
+    }
+
+    /**
+     * Sets the listener, replacing the previous one. If the signal is already
+     * cancelled the listener is called at once.
+     *
+     * @param listener
+     *            the listener, or null to remove it
+     */
+    public void setOnCancelListener(OnCancelListener listener) {
+        synchronized (this) {
+            mListener = listener;
+            if (!mCanceled || listener == null) {
+                return;
+            }
+        }
+        listener.onCancel();
+    }
+
+}
@@ -0,0 +1,157 @@
+package org.qinyu.utils;
+
+import java.util.LinkedList;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The Class FrameBatcher.
+ *
+ * Collects runnables posted from background threads and runs them on the main
+ * thread in batches, at most one pass per frame. A pass stops once its time
+ * budget is used up and leaves the rest to the next frame, so that a burst of
+ * results is spread over several frames instead of blocking one.
+ *
+ * Choreographer is only available since API 16, so passes are paced by
+ * {@link #FRAME_INTERVAL} on a main thread {@link Handler}.
+ */
+public class FrameBatcher {
+
+    /** The Constant TAG. */
+    private static final String TAG = FrameBatcher.class.getSimpleName();
+
+    /** The frame interval in milliseconds. */
+    public static final long FRAME_INTERVAL = 16;
+
+    /** The Constant DEFAULT_BUDGET. */
+    public static final long DEFAULT_BUDGET = 8;
+
+    /** The main thread handler. */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** The queued runnables, guarded by itself. */
+    private final LinkedList<Runnable> mQueue = new LinkedList<Runnable>();
+
+    /** Whether a pass is scheduled. */
+    private boolean mScheduled;
+
+    /** The start of the last pass. */
+    private long mLastPass;
+
+    /** The time budget of a pass in milliseconds. */
+    private volatile long mBudget;
+
+    /** The m pass. */
+    private final Runnable mPass = new Runnable() {
+        @Override
+        public void run() {
+            long start = SystemClock.uptimeMillis();
+            synchronized (mQueue) {
+                mLastPass = start;
+            }
+            try {
+                while (true) {
+                    Runnable next;
+                    synchronized (mQueue) {
+                        next = mQueue.poll();
+                        if (next == null) {
+                            return;
+                        }
+                    }
+                    try {
+                        next.run();
+                    } catch (RuntimeException e) {
+                        // one failing result must not hold up the others
+                        Log.e(TAG, "Batched runnable failed", e);
+                    }
+                    if (SystemClock.uptimeMillis() - start >= mBudget) {
+                        break;
+                    }
+                }
+            } finally {
+                synchronized (mQueue) {
+                    if (mQueue.isEmpty()) {
+                        mScheduled = false;
+                    } else {
+                        mHandler.postAtTime(this, start + FRAME_INTERVAL);
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * Instantiates a new frame batcher with the default budget.
+     */
+    public FrameBatcher() {
+        this(DEFAULT_BUDGET);
+    }
+
+    /**
+     * Instantiates a new frame batcher.
+     *
+     * @param budget
+     *            the time budget of a pass in milliseconds
+     */
+    public FrameBatcher(long budget) {
+        setBudget(budget);
+    }
+
+    /**
+     * Sets the time budget of a pass. At least one runnable runs per pass.
+     *
+     * @param budget
+     *            the budget in milliseconds
+     */
+    public void setBudget(long budget) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("budget <= 0");
+        }
+        mBudget = budget;
+    }
+
+    /**
+     * Gets the time budget of a pass.
+     *
+     * @return the budget in milliseconds
+     */
+    public long getBudget() {
+        return mBudget;
+    }
+
+    /**
+     * Queue a runnable for the next pass.
+     *
+     * @param r
+     *            the runnable
+     */
+    public void post(Runnable r) {
+        synchronized (mQueue) {
+            mQueue.add(r);
+            if (!mScheduled) {
+                mScheduled = true;
+                long now = SystemClock.uptimeMillis();
+                mHandler.postAtTime(mPass, Math.max(now, mLastPass + FRAME_INTERVAL));
+            }
+        }
+    }
+
+    /**
+     * Run a runnable at once when called on the main thread, queue it for the
+     * next pass otherwise.
+     *
+     * @param r
+     *            the runnable
+     */
+    public void runOnUiThread(Runnable r) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            r.run();
+        } else {
+            post(r);
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+package org.qinyu.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * The Class PipeInputStream.
+ *
+ * Hands bytes from a writer thread to a reader thread through a ring buffer of
+ * a fixed size. The writer never waits: if the reader falls so far behind that
+ * the buffer is full, the pipe breaks and the reader gets an
+ * {@link IOException}, so that a slow reader can not hold up the writer. The
+ * reader waits for bytes until the writer calls {@link #finish()} or
+ * {@link #fail()}.
+ */
+public class PipeInputStream extends InputStream {
+
+    /** The m buffer. */
+    private final byte[] mBuffer;
+
+    /** The index of the next byte to read. */
+    private int mHead;
+
+    /** The number of bytes written and not read yet. */
+    private int mCount;
+
+    /** Set once the writer wrote the last byte. */
+    private boolean mFinished;
+
+    /** Set once the pipe broke, by an overrun or by the writer. */
+    private boolean mBroken;
+
+    /** Set once the reader closed the stream. */
+    private boolean mClosed;
+
+    /**
+     * Instantiates a new pipe input stream.
+     *
+     * @param size
+     *            the size of the ring buffer
+     */
+    public PipeInputStream(int size) {
+        mBuffer = new byte[size];
+    }
+
+    /**
+     * Write bytes for the reader, without waiting.
+     *
+     * @param buffer
+     *            the buffer
+     * @param offset
+     *            the offset
+     * @param count
+     *            the count
+     * @return false, if the pipe is broken or closed and takes no more bytes
+     */
+    public synchronized boolean offer(byte[] buffer, int offset, int count) {
+        if (mBroken || mClosed || mFinished) {
+            return false;
+        }
+        if (count > mBuffer.length - mCount) {
+            // the reader fell behind
+            mBroken = true;
+            notifyAll();
+            return false;
+        }
+        int tail = (mHead + mCount) % mBuffer.length;
+        int first = Math.min(count, mBuffer.length - tail);
+        System.arraycopy(buffer, offset, mBuffer, tail, first);
+        System.arraycopy(buffer, offset + first, mBuffer, 0, count - first);
+        mCount += count;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * End the stream after the bytes written so far.
+     */
+    public synchronized void finish() {
+        mFinished = true;
+        notifyAll();
+    }
+
+    /**
+     * Break the pipe, the reader gets an {@link IOException} instead of the
+     * bytes not read yet.
+     */
+    public synchronized void fail() {
+        mBroken = true;
+        notifyAll();
+    }
+
+    /**
+     * Wait until there is a byte to read or the stream ended.
+     *
+     * @return false, at the end of the stream
+     */
+    private boolean await() throws IOException {
+        while (mCount == 0 && !mFinished && !mBroken && !mClosed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        if (mBroken) {
+            throw new IOException("Pipe broken");
+        } else if (mClosed) {
+            throw new IOException("Stream closed");
+        }
+        return mCount > 0;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.InputStream#read()
+     */
+    @Override
+    public synchronized int read() throws IOException {
+        if (!await()) {
+            return -1;
+        }
+        int b = mBuffer[mHead] & 0xff;
+        mHead = (mHead + 1) % mBuffer.length;
+        mCount--;
+        return b;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int count) throws IOException {
+        if (count == 0) {
+            return 0;
+        }
+        if (!await()) {
+            return -1;
+        }
+        count = Math.min(count, Math.min(mCount, mBuffer.length - mHead));
+        System.arraycopy(mBuffer, mHead, buffer, offset, count);
+        mHead = (mHead + count) % mBuffer.length;
+        mCount -= count;
+        return count;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.InputStream#available()
+     */
+    @Override
+    public synchronized int available() {
+        return mCount;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.InputStream#close()
+     */
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+}
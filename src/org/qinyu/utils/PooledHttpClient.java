@@ -0,0 +1,175 @@
+package org.qinyu.utils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * The Class PooledHttpClient.
+ *
+ * An http client meant to be shared by all threads of a loader. Connections
+ * are pooled by a thread safe connection manager and kept alive between
+ * requests, so that requests to the same host skip the TCP and TLS handshake.
+ * The client counts how many connections were opened and how many requests
+ * reused a pooled one.
+ *
+ * The entity of every response must be consumed or the request aborted, or
+ * its connection is never returned to the pool.
+ */
+public class PooledHttpClient extends DefaultHttpClient {
+
+    /** The time to wait for a pooled connection in milliseconds. */
+    public static final long CONNECTION_POOL_TIMEOUT = 15000;
+
+    /**
+     * A connection manager that counts opened and reused connections.
+     */
+    private static class CountingConnManager extends ThreadSafeClientConnManager {
+
+        /** The number of open connections handed out from the pool. */
+        private final AtomicLong mReused = new AtomicLong();
+
+        /** The number of connections opened. */
+        private final AtomicLong mOpened = new AtomicLong();
+
+        CountingConnManager(HttpParams params, SchemeRegistry registry) {
+            super(params, registry);
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager#
+         * createConnectionOperator(org.apache.http.conn.scheme.SchemeRegistry)
+         */
+        @Override
+        protected ClientConnectionOperator createConnectionOperator(SchemeRegistry registry) {
+            return new DefaultClientConnectionOperator(registry) {
+                @Override
+                public void openConnection(OperatedClientConnection conn, HttpHost target, InetAddress local,
+                        HttpContext context, HttpParams params) throws IOException {
+                    mOpened.incrementAndGet();
+                    super.openConnection(conn, target, local, context, params);
+                }
+            };
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager#
+         * requestConnection(org.apache.http.conn.routing.HttpRoute,
+         * java.lang.Object)
+         */
+        @Override
+        public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+            final ClientConnectionRequest request = super.requestConnection(route, state);
+            return new ClientConnectionRequest() {
+                @Override
+                public ManagedClientConnection getConnection(long timeout, TimeUnit tunit)
+                        throws InterruptedException, ConnectionPoolTimeoutException {
+                    ManagedClientConnection conn = request.getConnection(timeout, tunit);
+                    // a new connection is handed out closed and opened by the
+                    // client, an open one was kept alive in the pool
+                    if (conn.isOpen()) {
+                        mReused.incrementAndGet();
+                    }
+                    return conn;
+                }
+
+                @Override
+                public void abortRequest() {
+                    request.abortRequest();
+                }
+            };
+        }
+    }
+
+    /**
+     * Instantiates a new pooled http client.
+     *
+     * @param maxTotal
+     *            the maximum number of connections
+     * @param maxPerHost
+     *            the maximum number of connections to one host
+     */
+    public PooledHttpClient(int maxTotal, int maxPerHost) {
+        this(createParams(maxTotal, maxPerHost));
+    }
+
+    private PooledHttpClient(HttpParams params) {
+        super(new CountingConnManager(params, createSchemeRegistry()), params);
+    }
+
+    private static HttpParams createParams(int maxTotal, int maxPerHost) {
+        HttpParams params = HttpParamsHelper.setTimeout(new BasicHttpParams());
+        ConnManagerParams.setMaxTotalConnections(params, maxTotal);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxPerHost));
+        ConnManagerParams.setTimeout(params, CONNECTION_POOL_TIMEOUT);
+        return params;
+    }
+
+    private static SchemeRegistry createSchemeRegistry() {
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        return registry;
+    }
+
+    /**
+     * Gets the number of connections opened.
+     *
+     * @return the new connection count
+     */
+    public long getNewConnectionCount() {
+        return ((CountingConnManager) getConnectionManager()).mOpened.get();
+    }
+
+    /**
+     * Gets the number of requests served by a pooled connection.
+     *
+     * @return the reused connection count
+     */
+    public long getReusedConnectionCount() {
+        return ((CountingConnManager) getConnectionManager()).mReused.get();
+    }
+
+    /**
+     * Close the connections that were idle for longer than a time.
+     *
+     * @param idle
+     *            the idle time in milliseconds
+     */
+    public void closeIdleConnections(long idle) {
+        getConnectionManager().closeIdleConnections(idle, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Close all connections. The client can not be used afterwards.
+     */
+    public void shutdown() {
+        getConnectionManager().shutdown();
+    }
+
+}